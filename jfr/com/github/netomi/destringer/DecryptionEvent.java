@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import jdk.jfr.*;
+
+/**
+ * A flight recorder event that wraps the invocation of a decrypt method.
+ * <p>
+ * This class is compiled separately from the main sources, as it requires
+ * the jdk.jfr module, and must only be loaded if flight recorder events
+ * are supported, see {@link JfrDecryptionEventFactory}.
+ */
+@Name("com.github.netomi.destringer.Decryption")
+@Label("Decryption")
+@Category("Destringer")
+@StackTrace(false)
+class DecryptionEvent extends Event {
+
+    @Label("Decryptor Class")
+    String decryptorClass;
+
+    @Label("Method")
+    String method;
+
+    @Label("Caller Class")
+    String callerClass;
+
+    @Label("Caller Method")
+    String callerMethod;
+
+    @Label("Success")
+    boolean success;
+
+    static DecryptionEvent start() {
+        DecryptionEvent event = new DecryptionEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish(DecryptionRequest request, boolean success) {
+        end();
+
+        if (shouldCommit()) {
+            this.decryptorClass = request.getDecryptorClassName();
+            this.method         = request.getMethodName();
+            this.callerClass    = request.getCallerClassName();
+            this.callerMethod   = request.getCallerMethodName();
+            this.success        = success;
+
+            commit();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+/**
+ * Creates {@link DecryptionEvent}s, instantiated by {@link Metrics} if
+ * flight recorder events are supported.
+ */
+class JfrDecryptionEventFactory
+    implements DecryptionEventFactory {
+
+    @Override
+    public Object begin() {
+        return DecryptionEvent.start();
+    }
+
+    @Override
+    public void end(Object event, DecryptionRequest request, boolean success) {
+        ((DecryptionEvent) event).finish(request, success);
+    }
+}
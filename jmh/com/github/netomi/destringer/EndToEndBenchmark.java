@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import org.openjdk.jmh.annotations.*;
+import proguard.classfile.ClassPool;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of a complete decryption run, from reading
+ * a generated jar to writing the output jar, in classes and strings
+ * per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    @Param({ "1000" })
+    public int classes;
+
+    @Param({ "200" })
+    public int stringsPerClass;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private ObfuscatedJarGenerator generator;
+    private File                   inputJar;
+    private File                   outputJar;
+
+    /**
+     * The number of processed classes and decrypted strings, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long classes;
+        public long strings;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            classes = 0;
+            strings = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        inputJar  = File.createTempFile("destringer-input", ".jar");
+        outputJar = File.createTempFile("destringer-output", ".jar");
+
+        generator = new ObfuscatedJarGenerator(classes, stringsPerClass, 8, 10, 0);
+        generator.write(inputJar);
+    }
+
+    @TearDown
+    public void tearDown() {
+        inputJar.delete();
+        outputJar.delete();
+    }
+
+    @Benchmark
+    public void decryptJar(Counters counters) throws Exception {
+        ClassPool classPool = Destringer.readJar(inputJar.getPath(), false, new ClassPool());
+
+        Metrics         metrics = new Metrics();
+        StringDecryptor stringDecryptor;
+        try (DecryptionEngine engine = new LoadingEngine(inputJar)) {
+            stringDecryptor = new StringDecryptor(engine, threads, null, null, metrics);
+            classPool.accept(stringDecryptor);
+        }
+
+        new PassThroughJarWriter(inputJar).write(classPool,
+                                                 stringDecryptor.getModifiedClassNames(),
+                                                 outputJar);
+
+        counters.classes += generator.getClassCount();
+        // Strings that are left encrypted do not count.
+        counters.strings += metrics.getCounter(Metrics.PATCHED_CALL_SITES);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import org.openjdk.jmh.annotations.*;
+import proguard.classfile.ClassPool;
+import proguard.classfile.ProgramClass;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the different ways to invoke the decrypt method of a lifted
+ * decryptor class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvocationBenchmark {
+
+    private File              inputJar;
+    private JarResourceIndex  resources;
+    private LiftedDecryptor   decryptor;
+    private DecryptionRequest request;
+    private Class<?>          liftedClass;
+    private Method            cachedMethod;
+    private DecryptInvoker    invoker;
+
+    @Setup
+    public void setup() throws Exception {
+        inputJar = File.createTempFile("destringer-input", ".jar");
+
+        new ObfuscatedJarGenerator(1, 10, 1, 1, 0).write(inputJar);
+
+        resources = new JarResourceIndex(inputJar);
+
+        ClassPool    classPool      = Destringer.readJar(inputJar.getPath(), false, new ClassPool());
+        ProgramClass decryptorClass = (ProgramClass) classPool.getClass(ObfuscatedJarGenerator.PACKAGE_NAME + "Decryptor0");
+
+        List<CallSite> callSites = new ArrayList<>();
+        classPool.classesAccept(new CallSiteCollector(callSites));
+        request = callSites.get(0).getRequest();
+
+        decryptor   = LiftedDecryptor.lift(decryptorClass, resources);
+        liftedClass = decryptor.getDecryptorClass();
+
+        // Sets the caller context for the variants that call the lifted class directly.
+        liftedDecryptorInvoke();
+
+        cachedMethod = liftedClass.getDeclaredMethod(request.getMethodName(), Object.class);
+        cachedMethod.setAccessible(true);
+
+        invoker = DecryptInvoker.of(liftedClass, request.getMethodName());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        decryptor.close();
+        resources.close();
+        inputJar.delete();
+    }
+
+    /**
+     * The invocation path as used before: lookup, access check and invoke for every call.
+     */
+    @Benchmark
+    public Object reflectiveLookupAndInvoke() throws Exception {
+        Method m = liftedClass.getDeclaredMethod(request.getMethodName(), new Class[] { Object.class });
+        m.setAccessible(true);
+        return m.invoke(null, request.getArgument());
+    }
+
+    @Benchmark
+    public Object cachedReflectiveInvoke() throws Exception {
+        return cachedMethod.invoke(null, request.getArgument());
+    }
+
+    /**
+     * The generated bridge alone, which calls the decrypt method directly.
+     */
+    @Benchmark
+    public String bridgeInvoke() {
+        return invoker.invoke(request.getArgument());
+    }
+
+    /**
+     * The production path, including setting the caller context.
+     */
+    @Benchmark
+    public String liftedDecryptorInvoke() throws Exception {
+        return decryptor.decrypt(request.getMethodName(),
+                                 request.getArgument(),
+                                 request.getCallerClassName(),
+                                 request.getCallerMethodName(),
+                                 request.getConstantPoolSize());
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.*;
+import proguard.classfile.constant.StringConstant;
+import proguard.classfile.constant.Utf8Constant;
+import proguard.classfile.editor.ClassBuilder;
+import proguard.classfile.editor.CompactCodeAttributeComposer;
+import proguard.classfile.editor.ConstantPoolEditor;
+import proguard.classfile.util.ClassUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates jars with encrypted strings that resemble the output of
+ * stringer v9+.
+ * <p>
+ * Each decryptor class contains a decrypt method with the signature
+ * <code>(Ljava/lang/Object;)Ljava/lang/String;</code> that derives its
+ * key from the constant pool size, class name and method name of its
+ * caller, using the same instruction sequences that are replaced by
+ * {@link ProtectionRemover}. The caller classes contain call sites with
+ * both <code>ldc</code> and <code>ldc_w</code> instructions, the latter
+ * for any string beyond the first 255 constant pool entries.
+ */
+public class ObfuscatedJarGenerator {
+
+    public static final String PACKAGE_NAME = "generated/";
+
+    private final int  classCount;
+    private final int  stringsPerClass;
+    private final int  methodsPerClass;
+    private final int  decryptorCount;
+    private final long seed;
+
+    /**
+     * Creates a new ObfuscatedJarGenerator.
+     *
+     * @param classCount      the number of caller classes.
+     * @param stringsPerClass the number of encrypted strings per caller class,
+     *                        more than about 120 results in ldc_w call sites.
+     * @param methodsPerClass the number of methods the strings of a caller class are spread over.
+     * @param decryptorCount  the number of decryptor classes.
+     * @param seed            the seed for the generated strings.
+     */
+    public ObfuscatedJarGenerator(int  classCount,
+                                  int  stringsPerClass,
+                                  int  methodsPerClass,
+                                  int  decryptorCount,
+                                  long seed) {
+        this.classCount      = classCount;
+        this.stringsPerClass = stringsPerClass;
+        this.methodsPerClass = methodsPerClass;
+        this.decryptorCount  = decryptorCount;
+        this.seed            = seed;
+    }
+
+    public int getClassCount() {
+        return classCount + decryptorCount;
+    }
+
+    public int getStringCount() {
+        return classCount * stringsPerClass;
+    }
+
+    /**
+     * Generates the classes and adds them to a new class pool.
+     */
+    public ClassPool generate() {
+        ClassPool classPool = new ClassPool();
+        Random    random    = new Random(seed);
+
+        for (int i = 0; i < decryptorCount; i++) {
+            classPool.addClass(createDecryptorClass(decryptorClassName(i)));
+        }
+
+        for (int i = 0; i < classCount; i++) {
+            classPool.addClass(createCallerClass(PACKAGE_NAME + "C" + i,
+                                                 decryptorClassName(i % decryptorCount),
+                                                 random));
+        }
+
+        return classPool;
+    }
+
+    /**
+     * Generates the classes and writes them to the given jar.
+     */
+    public void write(File jarFile) throws IOException {
+        Destringer.writeJar(generate(), jarFile.getPath());
+    }
+
+    private static String decryptorClassName(int index) {
+        return PACKAGE_NAME + "Decryptor" + index;
+    }
+
+    /**
+     * Creates a decryptor class, whose decrypt method xors each character
+     * with the hash code of the caller context and the character index.
+     */
+    private static ProgramClass createDecryptorClass(String className) {
+        return
+            new ClassBuilder(VersionConstants.CLASS_VERSION_1_8,
+                             AccessConstants.PUBLIC,
+                             className,
+                             ClassConstants.NAME_JAVA_LANG_OBJECT)
+
+                .addMethod(AccessConstants.PUBLIC |
+                           AccessConstants.STATIC,
+                           "decrypt",
+                           CallSiteCollector.DECRYPT_METHOD_TYPE,
+                           200,
+                           code -> {
+                               CompactCodeAttributeComposer.Label loop = code.createLabel();
+                               CompactCodeAttributeComposer.Label end  = code.createLabel();
+
+                               code
+                                   .invokestatic("java/lang/Thread", "currentThread", "()Ljava/lang/Thread;")
+                                   .invokevirtual("java/lang/Thread", "getStackTrace", "()[Ljava/lang/StackTraceElement;")
+                                   .astore_1()
+                                   .new_("java/lang/StringBuilder")
+                                   .dup()
+                                   .invokespecial("java/lang/StringBuilder", "<init>", "()V")
+
+                                   // the constant pool size of the caller.
+                                   .invokestatic("sun/misc/SharedSecrets", "getJavaLangAccess", "()Lsun/misc/JavaLangAccess;")
+                                   .aload_1()
+                                   .iconst_2()
+                                   .aaload()
+                                   .invokevirtual("java/lang/StackTraceElement", "getClassName", "()Ljava/lang/String;")
+                                   .invokestatic("java/lang/Class", "forName", "(Ljava/lang/String;)Ljava/lang/Class;")
+                                   .invokeinterface("sun/misc/JavaLangAccess", "getConstantPool", "(Ljava/lang/Class;)Lsun/reflect/ConstantPool;")
+                                   .invokevirtual("sun/reflect/ConstantPool", "getSize", "()I")
+                                   .invokevirtual("java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;")
+
+                                   // the class name of the caller.
+                                   .aload_1()
+                                   .iconst_2()
+                                   .aaload()
+                                   .invokevirtual("java/lang/StackTraceElement", "getClassName", "()Ljava/lang/String;")
+                                   .invokevirtual("java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;")
+
+                                   // the method name of the caller.
+                                   .aload_1()
+                                   .iconst_2()
+                                   .aaload()
+                                   .invokevirtual("java/lang/StackTraceElement", "getMethodName", "()Ljava/lang/String;")
+                                   .invokevirtual("java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;")
+
+                                   .invokevirtual("java/lang/StringBuilder", "toString", "()Ljava/lang/String;")
+                                   .invokevirtual("java/lang/String", "hashCode", "()I")
+                                   .istore_2()
+
+                                   .aload_0()
+                                   .checkcast("java/lang/String")
+                                   .invokevirtual("java/lang/String", "toCharArray", "()[C")
+                                   .astore_3()
+                                   .iconst_0()
+                                   .istore(4)
+
+                                   .label(loop)
+                                   .iload(4)
+                                   .aload_3()
+                                   .arraylength()
+                                   .if_icmpge(end)
+                                   .aload_3()
+                                   .iload(4)
+                                   .aload_3()
+                                   .iload(4)
+                                   .caload()
+                                   .iload_2()
+                                   .iload(4)
+                                   .ixor()
+                                   .ixor()
+                                   .i2c()
+                                   .castore()
+                                   .iinc(4, 1)
+                                   .goto_(loop)
+
+                                   .label(end)
+                                   .new_("java/lang/String")
+                                   .dup()
+                                   .aload_3()
+                                   .invokespecial("java/lang/String", "<init>", "([C)V")
+                                   .areturn();
+                           })
+
+                .getProgramClass();
+    }
+
+    /**
+     * Creates a caller class whose methods decrypt and discard their
+     * strings with the given decryptor class.
+     */
+    private ProgramClass createCallerClass(String className, String decryptorClassName, Random random) {
+        ClassBuilder       classBuilder       =
+            new ClassBuilder(VersionConstants.CLASS_VERSION_1_8,
+                             AccessConstants.PUBLIC,
+                             className,
+                             ClassConstants.NAME_JAVA_LANG_OBJECT);
+        ConstantPoolEditor constantPoolEditor = classBuilder.getConstantPoolEditor();
+
+        // Add the strings as unique placeholders first, as the final constant
+        // pool size is part of the key.
+        int[]    stringIndices = new int[stringsPerClass];
+        String[] methodNames   = new String[stringsPerClass];
+
+        for (int i = 0; i < stringsPerClass; i++) {
+            stringIndices[i] = constantPoolEditor.addStringConstant("destringer$placeholder" + i, null, null);
+            methodNames[i]   = "m" + (i % methodsPerClass);
+        }
+
+        for (int m = 0; m < methodsPerClass; m++) {
+            int methodIndex = m;
+
+            classBuilder.addMethod(AccessConstants.PUBLIC |
+                                   AccessConstants.STATIC,
+                                   "m" + m,
+                                   "()V",
+                                   stringsPerClass * 8 + 1,
+                                   code -> {
+                                       for (int i = methodIndex; i < stringsPerClass; i += methodsPerClass) {
+                                           int stringIndex = stringIndices[i];
+
+                                           if (stringIndex <= 0xff) {
+                                               code.ldc_(stringIndex);
+                                           } else {
+                                               code.ldc_w_(stringIndex);
+                                           }
+
+                                           code.invokestatic(decryptorClassName, "decrypt", CallSiteCollector.DECRYPT_METHOD_TYPE)
+                                               .pop();
+                                       }
+
+                                       code.return_();
+                                   });
+        }
+
+        ProgramClass programClass = classBuilder.getProgramClass();
+
+        // Replace the placeholders by the encrypted strings.
+        String externalClassName = ClassUtil.externalClassName(className);
+        int    constantPoolSize  = programClass.u2constantPoolCount;
+
+        for (int i = 0; i < stringsPerClass; i++) {
+            int key = (constantPoolSize + externalClassName + methodNames[i]).hashCode();
+
+            StringConstant stringConstant = (StringConstant) programClass.constantPool[stringIndices[i]];
+            Utf8Constant   utf8Constant   = (Utf8Constant)   programClass.constantPool[stringConstant.u2stringIndex];
+
+            utf8Constant.setString(encrypt(randomString(random), key));
+        }
+
+        return programClass;
+    }
+
+    private static String randomString(Random random) {
+        char[] chars = new char[8 + random.nextInt(24)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private static String encrypt(String string, int key) {
+        char[] chars = string.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (chars[i] ^ key ^ i);
+        }
+        return new String(chars);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: ObfuscatedJarGenerator <output.jar> [classes] [strings per class] [decryptors]");
+            System.exit(1);
+        }
+
+        int classCount      = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int stringsPerClass = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int decryptorCount  = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        ObfuscatedJarGenerator generator =
+            new ObfuscatedJarGenerator(classCount, stringsPerClass, 8, decryptorCount, 0);
+
+        generator.write(new File(args[0]));
+
+        System.out.println("generated " + generator.getClassCount() + " classes with " +
+                           generator.getStringCount() + " encrypted strings.");
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import org.openjdk.jmh.annotations.*;
+import proguard.classfile.ClassPool;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.util.ClassUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the separate stages of a decryption run on a generated jar,
+ * see {@link ObfuscatedJarGenerator}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageBenchmark {
+
+    @Param({ "100", "1000" })
+    public int classes;
+
+    @Param({ "200" })
+    public int stringsPerClass;
+
+    private File                    inputJar;
+    private File                    outputJar;
+    private JarResourceIndex        resources;
+    private ClassPool               classPool;
+    private ProgramClass            decryptorClass;
+    private byte[]                  liftedClassBytes;
+    private String                  liftedClassName;
+    private LiftedDecryptor         decryptor;
+    private List<DecryptionRequest> requests;
+    private int                     nextRequest;
+
+    @Setup
+    public void setup() throws Exception {
+        inputJar  = File.createTempFile("destringer-input", ".jar");
+        outputJar = File.createTempFile("destringer-output", ".jar");
+
+        new ObfuscatedJarGenerator(classes, stringsPerClass, 8, 10, 0).write(inputJar);
+
+        resources = new JarResourceIndex(inputJar);
+
+        classPool      = Destringer.readJar(inputJar.getPath(), false, new ClassPool());
+        decryptorClass = (ProgramClass) classPool.getClass(ObfuscatedJarGenerator.PACKAGE_NAME + "Decryptor0");
+
+        ProgramClass liftedClass = CodeLifter.liftClass(decryptorClass);
+        liftedClassBytes = CodeLifter.toByteArray(liftedClass);
+        liftedClassName  = ClassUtil.externalClassName(liftedClass.getName());
+        decryptor        = LiftedDecryptor.lift(decryptorClass, resources);
+
+        // The requests to the first decryptor class.
+        List<CallSite> callSites = new ArrayList<>();
+        classPool.classesAccept(new CallSiteCollector(callSites));
+
+        requests = new ArrayList<>();
+        for (CallSite callSite : callSites) {
+            if (callSite.getRequest().getDecryptorClassName().equals(decryptorClass.getName())) {
+                requests.add(callSite.getRequest());
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        resources.close();
+        inputJar.delete();
+        outputJar.delete();
+    }
+
+    @Benchmark
+    public ClassPool readJar() throws Exception {
+        return Destringer.readJar(inputJar.getPath(), false, new ClassPool());
+    }
+
+    @Benchmark
+    public ClassPool readJarParallel() throws Exception {
+        return new ParallelJarReader(Runtime.getRuntime().availableProcessors()).read(inputJar, new ClassPool());
+    }
+
+    @Benchmark
+    public ProgramClass copyClass() {
+        return CodeLifter.copyClass(decryptorClass);
+    }
+
+    /**
+     * Includes copying the class, as the protection remover modifies it.
+     */
+    @Benchmark
+    public ProgramClass copyClassAndRemoveProtection() {
+        ProgramClass programClass = CodeLifter.copyClass(decryptorClass);
+        programClass.accept(new ProtectionRemover(programClass.getName()));
+        return programClass;
+    }
+
+    @Benchmark
+    public Class<?> loadClass() throws Exception {
+        Class<?> loadedClass = CodeLifter.loadClass(liftedClassName, liftedClassBytes, resources);
+        ((DecryptorClassLoader) loadedClass.getClassLoader()).close();
+        return loadedClass;
+    }
+
+    @Benchmark
+    public String invoke() throws Exception {
+        DecryptionRequest request = requests.get(nextRequest++ % requests.size());
+
+        return decryptor.decrypt(request.getMethodName(),
+                                 request.getArgument(),
+                                 request.getCallerClassName(),
+                                 request.getCallerMethodName(),
+                                 request.getConstantPoolSize());
+    }
+
+    @Benchmark
+    public File writeJar() throws Exception {
+        Destringer.writeJar(classPool, outputJar.getPath());
+        return outputJar;
+    }
+
+    @Benchmark
+    public File writeJarPassThrough() throws Exception {
+        new PassThroughJarWriter(inputJar).write(classPool, Collections.emptySet(), outputJar);
+        return outputJar;
+    }
+}
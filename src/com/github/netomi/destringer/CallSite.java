@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.Method;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.attribute.CodeAttribute;
+
+/**
+ * A call site of a decrypt method, consisting of the instructions pushing
+ * the encrypted string and the invocation of the decrypt method, see
+ * {@link CallSitePattern}.
+ */
+public class CallSite {
+
+    private final ProgramClass      callerClass;
+    private final Method            callerMethod;
+    private final CodeAttribute     codeAttribute;
+    private final int               loadOffset;
+    private final int               invokeOffset;
+    private final DecryptionRequest request;
+
+    public CallSite(ProgramClass      callerClass,
+                    Method            callerMethod,
+                    CodeAttribute     codeAttribute,
+                    int               loadOffset,
+                    int               invokeOffset,
+                    DecryptionRequest request) {
+        this.callerClass   = callerClass;
+        this.callerMethod  = callerMethod;
+        this.codeAttribute = codeAttribute;
+        this.loadOffset    = loadOffset;
+        this.invokeOffset  = invokeOffset;
+        this.request       = request;
+    }
+
+    public ProgramClass getCallerClass() {
+        return callerClass;
+    }
+
+    public Method getCallerMethod() {
+        return callerMethod;
+    }
+
+    public CodeAttribute getCodeAttribute() {
+        return codeAttribute;
+    }
+
+    /**
+     * Returns the offset of the first instruction loading the encrypted string.
+     */
+    public int getLoadOffset() {
+        return loadOffset;
+    }
+
+    /**
+     * Returns the offset of the invocation of the decrypt method.
+     */
+    public int getInvokeOffset() {
+        return invokeOffset;
+    }
+
+    public DecryptionRequest getRequest() {
+        return request;
+    }
+}
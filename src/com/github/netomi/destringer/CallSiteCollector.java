@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.*;
+import proguard.classfile.attribute.Attribute;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.attribute.visitor.AllAttributeVisitor;
+import proguard.classfile.attribute.visitor.AttributeVisitor;
+import proguard.classfile.constant.Constant;
+import proguard.classfile.instruction.ConstantInstruction;
+import proguard.classfile.instruction.Instruction;
+import proguard.classfile.instruction.visitor.InstructionVisitor;
+import proguard.classfile.util.ClassUtil;
+import proguard.classfile.visitor.AllMethodVisitor;
+import proguard.classfile.visitor.ClassVisitor;
+
+import java.util.*;
+
+/**
+ * Collects all call sites of decrypt methods added by stringer v9+
+ * in the visited classes.
+ * <p>
+ * All call site patterns end with the invocation of a static decrypt
+ * method, so the patterns are indexed by the descriptor of that method.
+ * Each code attribute is traversed once, only keeping a window of the
+ * preceding instructions, which are matched against the patterns only
+ * when a candidate decrypt method is invoked.
+ */
+public class   CallSiteCollector
+    implements ClassVisitor,
+               AttributeVisitor,
+               InstructionVisitor {
+
+    public static final String DECRYPT_METHOD_TYPE = "(Ljava/lang/Object;)Ljava/lang/String;";
+
+    private final List<CallSite>                     callSites;
+    private final Map<String, List<CallSitePattern>> patternsByMethodType = new HashMap<>();
+
+    // The most recent instructions and their offsets, as a ring buffer.
+    private final Instruction[] windowInstructions;
+    private final int[]         windowOffsets;
+    private       int           windowCount;
+
+    private String callerClassName;
+    private int    constantPoolLength;
+
+    /**
+     * Creates a new CallSiteCollector that adds all found call sites
+     * to the given list.
+     */
+    public CallSiteCollector(List<CallSite> callSites) {
+        this(callSites, StringArgumentPattern.defaultPatterns());
+    }
+
+    /**
+     * Creates a new CallSiteCollector that adds all call sites matching
+     * any of the given patterns to the given list.
+     */
+    public CallSiteCollector(List<CallSite> callSites, List<CallSitePattern> patterns) {
+        this.callSites = callSites;
+
+        int windowSize = 1;
+        for (CallSitePattern pattern : patterns) {
+            patternsByMethodType.computeIfAbsent(pattern.getDecryptMethodType(), k -> new ArrayList<>())
+                                .add(pattern);
+
+            windowSize = Math.max(windowSize, pattern.getArgumentInstructionCount());
+        }
+
+        windowInstructions = new Instruction[windowSize];
+        windowOffsets      = new int[windowSize];
+    }
+
+    @Override
+    public void visitAnyClass(Clazz clazz) {}
+
+    @Override
+    public void visitProgramClass(ProgramClass programClass) {
+        callerClassName    = ClassUtil.externalClassName(programClass.getName());
+        constantPoolLength = programClass.constantPool.length;
+
+        programClass.accept(
+            new AllMethodVisitor(
+            new AllAttributeVisitor(this)));
+    }
+
+    @Override
+    public void visitAnyAttribute(Clazz clazz, Attribute attribute) {}
+
+    @Override
+    public void visitCodeAttribute(Clazz clazz, Method method, CodeAttribute codeAttribute) {
+        windowCount = 0;
+
+        codeAttribute.instructionsAccept(clazz, method, this);
+    }
+
+    @Override
+    public void visitAnyInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, Instruction instruction) {
+        if (instruction.opcode == Instruction.OP_INVOKESTATIC) {
+            matchCallSite(clazz, method, codeAttribute, offset, ((ConstantInstruction) instruction).constantIndex);
+        }
+
+        windowInstructions[windowCount % windowInstructions.length] = instruction;
+        windowOffsets[windowCount % windowOffsets.length]           = offset;
+        windowCount++;
+    }
+
+    private void matchCallSite(Clazz         clazz,
+                               Method        method,
+                               CodeAttribute codeAttribute,
+                               int           invokeOffset,
+                               int           methodrefIndex) {
+        if (clazz.getTag(methodrefIndex) != Constant.METHODREF) {
+            return;
+        }
+
+        List<CallSitePattern> patterns = patternsByMethodType.get(clazz.getRefType(methodrefIndex));
+        if (patterns == null) {
+            return;
+        }
+
+        for (CallSitePattern pattern : patterns) {
+            int count = pattern.getArgumentInstructionCount();
+            if (count > windowCount) {
+                continue;
+            }
+
+            Instruction[] instructions = new Instruction[count];
+            for (int i = 0; i < count; i++) {
+                instructions[i] = windowInstructions[(windowCount - count + i) % windowInstructions.length];
+            }
+
+            int stringIndex = pattern.matchArgument(clazz, instructions);
+            if (stringIndex < 0) {
+                continue;
+            }
+
+            DecryptionRequest request =
+                new DecryptionRequest(clazz.getRefClassName(methodrefIndex),
+                                      clazz.getRefName(methodrefIndex),
+                                      clazz.getStringString(stringIndex),
+                                      callerClassName,
+                                      method.getName(clazz),
+                                      constantPoolLength);
+
+            callSites.add(
+                new CallSite((ProgramClass) clazz,
+                             method,
+                             codeAttribute,
+                             windowOffsets[(windowCount - count) % windowOffsets.length],
+                             invokeOffset,
+                             request));
+
+            // Instructions can only be part of a single call site.
+            windowCount = 0;
+            return;
+        }
+    }
+}
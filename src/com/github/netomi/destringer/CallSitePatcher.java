@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.Clazz;
+import proguard.classfile.Method;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.attribute.Attribute;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.attribute.visitor.AllAttributeVisitor;
+import proguard.classfile.attribute.visitor.AttributeVisitor;
+import proguard.classfile.editor.CodeAttributeEditor;
+import proguard.classfile.editor.ConstantPoolEditor;
+import proguard.classfile.editor.ConstantPoolShrinker;
+import proguard.classfile.instruction.ConstantInstruction;
+import proguard.classfile.instruction.Instruction;
+import proguard.classfile.instruction.InstructionFactory;
+import proguard.classfile.visitor.AllMethodVisitor;
+import proguard.classfile.visitor.ClassVisitor;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces the call sites of decrypt methods in the visited classes with
+ * the respective decrypted strings and shrinks the constant pool of
+ * any modified class.
+ */
+public class   CallSitePatcher
+    implements ClassVisitor,
+               AttributeVisitor {
+
+    private final Map<Clazz, List<CallSite>>     callSitesByClass;
+    private final Map<DecryptionRequest, String> decryptedStrings;
+    private final Metrics                        metrics;
+
+    private final CodeAttributeEditor codeAttributeEditor = new CodeAttributeEditor(true, true);
+    private       ConstantPoolEditor  constantPoolEditor;
+    private       List<CallSite>      classCallSites;
+    private       int                 patchedCallSites;
+    private final Set<String>         modifiedClassNames = new HashSet<>();
+
+    public CallSitePatcher(Map<Clazz, List<CallSite>>     callSitesByClass,
+                           Map<DecryptionRequest, String> decryptedStrings) {
+        this(callSitesByClass, decryptedStrings, new Metrics());
+    }
+
+    public CallSitePatcher(Map<Clazz, List<CallSite>>     callSitesByClass,
+                           Map<DecryptionRequest, String> decryptedStrings,
+                           Metrics                        metrics) {
+        this.callSitesByClass = callSitesByClass;
+        this.decryptedStrings = decryptedStrings;
+        this.metrics          = metrics;
+    }
+
+    /**
+     * Returns the number of call sites that have been replaced.
+     */
+    public int getPatchedCallSites() {
+        return patchedCallSites;
+    }
+
+    /**
+     * Returns the names of the classes that have been modified.
+     */
+    public Set<String> getModifiedClassNames() {
+        return modifiedClassNames;
+    }
+
+    @Override
+    public void visitAnyClass(Clazz clazz) {}
+
+    @Override
+    public void visitProgramClass(ProgramClass programClass) {
+        classCallSites = callSitesByClass.get(programClass);
+        if (classCallSites == null) {
+            return;
+        }
+
+        int  patchedBefore = patchedCallSites;
+        long startTime     = System.nanoTime();
+
+        constantPoolEditor = new ConstantPoolEditor(programClass);
+
+        programClass.accept(
+            new AllMethodVisitor(
+            new AllAttributeVisitor(this)));
+
+        metrics.record(Metrics.Phase.PATCH, startTime);
+
+        if (patchedCallSites > patchedBefore) {
+            startTime = System.nanoTime();
+
+            programClass.accept(new ConstantPoolShrinker());
+
+            metrics.record(Metrics.Phase.CONSTANT_POOL_SHRINK, startTime);
+
+            modifiedClassNames.add(programClass.getName());
+        }
+    }
+
+    @Override
+    public void visitAnyAttribute(Clazz clazz, Attribute attribute) {}
+
+    @Override
+    public void visitCodeAttribute(Clazz clazz, Method method, CodeAttribute codeAttribute) {
+        codeAttributeEditor.reset(codeAttribute.u4codeLength);
+
+        for (CallSite callSite : classCallSites) {
+            if (callSite.getCodeAttribute() != codeAttribute) {
+                continue;
+            }
+
+            String result = decryptedStrings.get(callSite.getRequest());
+            if (result == null) {
+                continue;
+            }
+
+            int constantIndex = constantPoolEditor.addStringConstant(result, null, null);
+
+            codeAttributeEditor.replaceInstruction(callSite.getLoadOffset(), new ConstantInstruction(Instruction.OP_LDC, constantIndex));
+
+            // delete any further instructions of the call site, up to and including the invocation.
+            int offset = callSite.getLoadOffset();
+            do {
+                offset += InstructionFactory.create(codeAttribute.code, offset).length(offset);
+                codeAttributeEditor.deleteInstruction(offset);
+            } while (offset < callSite.getInvokeOffset());
+
+            patchedCallSites++;
+        }
+
+        if (codeAttributeEditor.isModified())
+        {
+            codeAttributeEditor.visitCodeAttribute(clazz, method, codeAttribute);
+        }
+    }
+}
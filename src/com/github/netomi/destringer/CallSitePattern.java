@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.Clazz;
+import proguard.classfile.instruction.Instruction;
+
+/**
+ * A pattern of instructions that pass an encrypted string to a static
+ * decrypt method, see {@link CallSiteCollector}.
+ * <p>
+ * Each pattern consists of a fixed number of instructions that load the
+ * argument, directly followed by the invocation of a method with the
+ * descriptor returned by {@link #getDecryptMethodType()}.
+ */
+public interface CallSitePattern {
+
+    /**
+     * Returns the descriptor of the decrypt methods invoked by this pattern.
+     */
+    String getDecryptMethodType();
+
+    /**
+     * Returns the number of instructions that load the argument.
+     */
+    int getArgumentInstructionCount();
+
+    /**
+     * Returns the index of the string constant that is loaded by the given
+     * instructions, or -1 if they do not match this pattern.
+     */
+    int matchArgument(Clazz clazz, Instruction[] instructions);
+}
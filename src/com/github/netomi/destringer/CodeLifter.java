@@ -15,23 +15,139 @@
  */
 package com.github.netomi.destringer;
 
+import proguard.classfile.AccessConstants;
 import proguard.classfile.ClassConstants;
 import proguard.classfile.ProgramClass;
+import proguard.classfile.ProgramField;
+import proguard.classfile.ProgramMethod;
+import proguard.classfile.VersionConstants;
 import proguard.classfile.constant.Constant;
+import proguard.classfile.editor.ClassBuilder;
+import proguard.classfile.editor.ClassEditor;
 import proguard.classfile.editor.ConstantPoolEditor;
 import proguard.classfile.editor.MemberAdder;
+import proguard.classfile.io.ProgramClassWriter;
 
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.security.CodeSigner;
-import java.security.CodeSource;
-import java.security.ProtectionDomain;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 public class CodeLifter {
 
+    // Static fields injected into lifted classes that hold the caller context.
+    public static final String CALLER_CLASS_NAME_FIELD  = "destringer$callerClassName";
+    public static final String CALLER_METHOD_NAME_FIELD = "destringer$callerMethodName";
+    public static final String CONSTANT_POOL_SIZE_FIELD = "destringer$constantPoolSize";
+
+    // The infix of the bridge classes generated for the decrypt methods of lifted classes.
+    private static final String BRIDGE_CLASS_INFIX = "$destringer$";
+
+    /**
+     * Returns a copy of the given decryptor class whose protection checks
+     * read the caller context from injected static fields instead of
+     * inspecting the actual call stack.
+     */
+    public static ProgramClass liftClass(ProgramClass originalClass) {
+        return liftClass(originalClass, new Metrics());
+    }
+
+    /**
+     * Lifts the given decryptor class, recording the time spent in the
+     * given metrics.
+     */
+    public static ProgramClass liftClass(ProgramClass originalClass, Metrics metrics) {
+        long startTime = System.nanoTime();
+
+        ProgramClass liftedClass = copyClass(originalClass);
+
+        ConstantPoolEditor constantPoolEditor = new ConstantPoolEditor(liftedClass);
+        ClassEditor        classEditor        = new ClassEditor(liftedClass);
+
+        addStaticField(constantPoolEditor, classEditor, CALLER_CLASS_NAME_FIELD,  "Ljava/lang/String;");
+        addStaticField(constantPoolEditor, classEditor, CALLER_METHOD_NAME_FIELD, "Ljava/lang/String;");
+        addStaticField(constantPoolEditor, classEditor, CONSTANT_POOL_SIZE_FIELD, "I");
+
+        // The generated bridge classes have to be able to invoke the decrypt methods.
+        for (int index = 0; index < liftedClass.u2methodsCount; index++) {
+            ProgramMethod method = liftedClass.methods[index];
+            if ((method.getAccessFlags() & AccessConstants.STATIC) != 0 &&
+                method.getDescriptor(liftedClass).equals(CallSiteCollector.DECRYPT_METHOD_TYPE)) {
+                method.u2accessFlags &= ~AccessConstants.PRIVATE;
+            }
+        }
+
+        metrics.record(Metrics.Phase.LIFT, startTime);
+        startTime = System.nanoTime();
+
+        liftedClass.accept(new ProtectionRemover(liftedClass.getName()));
+
+        metrics.record(Metrics.Phase.PROTECTION_REMOVAL, startTime);
+
+        return liftedClass;
+    }
+
+    private static void addStaticField(ConstantPoolEditor constantPoolEditor,
+                                       ClassEditor        classEditor,
+                                       String             name,
+                                       String             descriptor) {
+        classEditor.addField(
+            new ProgramField(AccessConstants.PUBLIC | AccessConstants.STATIC,
+                             constantPoolEditor.addUtf8Constant(name),
+                             constantPoolEditor.addUtf8Constant(descriptor),
+                             null));
+    }
+
+    /**
+     * Returns a class that implements {@link java.util.function.Function} by
+     * invoking the given static decrypt method of the given lifted class.
+     * The bridge class has to be defined in the class loader of the lifted
+     * class.
+     */
+    public static ProgramClass createBridgeClass(String liftedClassName, String methodName) {
+        return
+            new ClassBuilder(VersionConstants.CLASS_VERSION_1_8,
+                             AccessConstants.PUBLIC |
+                             AccessConstants.FINAL  |
+                             AccessConstants.SYNTHETIC,
+                             liftedClassName + BRIDGE_CLASS_INFIX + methodName,
+                             ClassConstants.NAME_JAVA_LANG_OBJECT)
+
+                .addInterface("java/util/function/Function")
+
+                .addMethod(AccessConstants.PUBLIC,
+                           ClassConstants.METHOD_NAME_INIT,
+                           ClassConstants.METHOD_TYPE_INIT,
+                           10,
+                           code -> code
+                               .aload_0()
+                               .invokespecial(ClassConstants.NAME_JAVA_LANG_OBJECT,
+                                              ClassConstants.METHOD_NAME_INIT,
+                                              ClassConstants.METHOD_TYPE_INIT)
+                               .return_())
+
+                .addMethod(AccessConstants.PUBLIC,
+                           "apply",
+                           "(Ljava/lang/Object;)Ljava/lang/Object;",
+                           10,
+                           code -> code
+                               .aload_1()
+                               .invokestatic(liftedClassName, methodName, CallSiteCollector.DECRYPT_METHOD_TYPE)
+                               .areturn())
+
+                .getProgramClass();
+    }
+
+    public static byte[] toByteArray(ProgramClass programClass) throws IOException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream os = new DataOutputStream(baos)) {
+
+            programClass.accept(new ProgramClassWriter(os));
+            os.flush();
+
+            return baos.toByteArray();
+        }
+    }
+
     public static ProgramClass copyClass(ProgramClass originalClass) {
         // Create an empty output class.
         ProgramClass duplicatedClass =
@@ -60,43 +176,23 @@ public class CodeLifter {
         return duplicatedClass;
     }
 
-    public static Class<?> loadClass(String externalClassName, byte[] content, URL inputURL) throws Exception {
-        ClassLoader classLoader =
-            new ByteClassLoader(new URL[] { inputURL  },
-                                CodeLifter.class.getClassLoader(),
-                                Collections.singletonMap(externalClassName, content));
-
-        CodeSource codeSource = new CodeSource(inputURL, (CodeSigner[]) null);
-
-        Class<?> loadedClass = Class.forName(externalClassName, true, classLoader);
-
-        // replace code source in protection domain.
-        ProtectionDomain domain = loadedClass.getProtectionDomain();
-
-        java.lang.reflect.Field field = domain.getClass().getDeclaredField("codesource");
-        field.setAccessible(true);
-        field.set(domain, codeSource);
-
-        return loadedClass;
-    }
-
-    private static class ByteClassLoader extends URLClassLoader {
-        private final Map<String, byte[]> extraClassDefs;
-
-        public ByteClassLoader(URL[] urls, ClassLoader parent, Map<String, byte[]> extraClassDefs) {
-            super(urls, parent);
-            this.extraClassDefs = new HashMap<>(extraClassDefs);
+    /**
+     * Defines and initializes the given lifted class in a new
+     * {@link DecryptorClassLoader} that reads any other classes and
+     * resources from the given jar.
+     */
+    public static Class<?> loadClass(String externalClassName, byte[] content, JarResourceIndex resources) throws Exception {
+        DecryptorClassLoader classLoader =
+            new DecryptorClassLoader(resources,
+                                     CodeLifter.class.getClassLoader(),
+                                     externalClassName,
+                                     content);
+
+        try {
+            return Class.forName(externalClassName, true, classLoader);
+        } catch (Exception | Error e) {
+            classLoader.close();
+            throw e;
         }
-
-        @Override
-        protected Class<?> findClass(final String name) throws ClassNotFoundException {
-            byte[] classBytes = this.extraClassDefs.remove(name);
-            if (classBytes != null) {
-                return defineClass(name, classBytes, 0, classBytes.length);
-            }
-            return super.findClass(name);
-        }
-
     }
-
 }
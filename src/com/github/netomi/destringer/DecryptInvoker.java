@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ProgramClass;
+import proguard.classfile.util.ClassUtil;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.function.Function;
+
+/**
+ * Invokes a decrypt method with signature <code>(Ljava/lang/Object;)Ljava/lang/String;</code>
+ * of a lifted decryptor class through a generated bridge class.
+ * <p>
+ * The bridge implements {@link Function} with a direct call to the decrypt
+ * method and is defined in the {@link DecryptorClassLoader} of the lifted
+ * class. Compared to {@link Method#invoke(Object, Object...)} or a method
+ * handle held in a field, the call does not go through any lookup, access
+ * check or argument array and can be inlined by the JIT.
+ */
+public final class DecryptInvoker {
+
+    private final Function<Object, String> bridge;
+
+    private DecryptInvoker(Function<Object, String> bridge) {
+        this.bridge = bridge;
+    }
+
+    /**
+     * Generates and loads the bridge for the given decrypt method of the
+     * given lifted class. Invokers should be created once per lifted class
+     * and method.
+     */
+    @SuppressWarnings("unchecked")
+    public static DecryptInvoker of(Class<?> liftedClass, String methodName) throws ReflectiveOperationException {
+        Method method = liftedClass.getDeclaredMethod(methodName, Object.class);
+        if (!Modifier.isStatic(method.getModifiers()) ||
+            method.getReturnType() != String.class) {
+            throw new NoSuchMethodException("no static decrypt method " + liftedClass.getName() + "." + methodName);
+        }
+
+        ProgramClass bridgeClass =
+            CodeLifter.createBridgeClass(ClassUtil.internalClassName(liftedClass.getName()), methodName);
+
+        byte[] bridgeClassBytes;
+        try {
+            bridgeClassBytes = CodeLifter.toByteArray(bridgeClass);
+        } catch (IOException e) {
+            throw new ClassNotFoundException(bridgeClass.getName(), e);
+        }
+
+        Class<?> bridge =
+            ((DecryptorClassLoader) liftedClass.getClassLoader())
+                .defineGeneratedClass(ClassUtil.externalClassName(bridgeClass.getName()), bridgeClassBytes);
+
+        return new DecryptInvoker((Function<Object, String>) bridge.newInstance());
+    }
+
+    public String invoke(Object argument) {
+        return bridge.apply(argument);
+    }
+}
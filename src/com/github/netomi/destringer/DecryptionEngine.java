@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ProgramClass;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * An engine that executes the decrypt methods of a decryptor class.
+ */
+public interface DecryptionEngine
+    extends          Closeable {
+
+    /**
+     * Decrypts the given requests to decrypt methods of the given decryptor
+     * class and puts the decrypted strings into the given result map.
+     * <p>
+     * Requests that can not be decrypted are left out of the result map.
+     * Timings and failures are recorded in the given metrics, which may
+     * differ between calls, e.g. for concurrent jobs sharing an engine.
+     */
+    void decrypt(ProgramClass                   decryptorClass,
+                 Collection<DecryptionRequest>  requests,
+                 Map<DecryptionRequest, String> results,
+                 Metrics                        metrics) throws Exception;
+
+    /**
+     * Releases any resources held by this engine.
+     */
+    @Override
+    default void close() throws IOException {}
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+/**
+ * Creates flight recorder events for single decryptions.
+ * <p>
+ * The implementation lives in the separate <code>jfr</code> source set, so
+ * that the main sources also build on JDKs without the jdk.jfr module.
+ */
+interface DecryptionEventFactory {
+
+    /**
+     * Starts and returns a new event.
+     */
+    Object begin();
+
+    /**
+     * Ends the given event and commits it, if enabled.
+     */
+    void end(Object event, DecryptionRequest request, boolean success);
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import java.util.Objects;
+
+/**
+ * A single decryption request, i.e. the decrypt method to invoke, its
+ * argument and the context of the calling method.
+ * <p>
+ * Call sites that result in equal requests share the same decrypted string.
+ */
+public final class DecryptionRequest {
+
+    private final String decryptorClassName;
+    private final String methodName;
+    private final String argument;
+    private final String callerClassName;
+    private final String callerMethodName;
+    private final int    constantPoolSize;
+
+    public DecryptionRequest(String decryptorClassName,
+                             String methodName,
+                             String argument,
+                             String callerClassName,
+                             String callerMethodName,
+                             int    constantPoolSize) {
+        this.decryptorClassName = decryptorClassName;
+        this.methodName         = methodName;
+        this.argument           = argument;
+        this.callerClassName    = callerClassName;
+        this.callerMethodName   = callerMethodName;
+        this.constantPoolSize   = constantPoolSize;
+    }
+
+    /**
+     * Returns the internal name of the class containing the decrypt method.
+     */
+    public String getDecryptorClassName() {
+        return decryptorClassName;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public String getArgument() {
+        return argument;
+    }
+
+    /**
+     * Returns the external name of the calling class.
+     */
+    public String getCallerClassName() {
+        return callerClassName;
+    }
+
+    public String getCallerMethodName() {
+        return callerMethodName;
+    }
+
+    /**
+     * Returns the constant pool size of the calling class.
+     */
+    public int getConstantPoolSize() {
+        return constantPoolSize;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        DecryptionRequest other = (DecryptionRequest) o;
+        return constantPoolSize == other.constantPoolSize            &&
+               decryptorClassName.equals(other.decryptorClassName) &&
+               methodName.equals(other.methodName)                 &&
+               argument.equals(other.argument)                     &&
+               callerClassName.equals(other.callerClassName)       &&
+               callerMethodName.equals(other.callerMethodName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(decryptorClassName, methodName, argument, callerClassName, callerMethodName, constantPoolSize);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s.%s(%s)", decryptorClassName, methodName, argument);
+    }
+}
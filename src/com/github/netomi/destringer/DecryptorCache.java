@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ProgramClass;
+import proguard.classfile.util.ClassUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A bounded pool of lifted decryptor classes, keyed by the name of
+ * the original decryptor class.
+ * <p>
+ * Each decryptor is defined in its own {@link DecryptorClassLoader}, all
+ * loaders share a single opened {@link JarResourceIndex} of the input jar.
+ * Decryptors are handed out as {@link Lease}s. Before a new decryptor is
+ * defined, and whenever a lease is released, least recently used decryptors
+ * without leases are evicted and their loaders closed, as long as the number
+ * of loaders, the number of classes defined by them or their estimated
+ * metaspace use exceed the budget. Decryptors that are in use are never
+ * closed, so the budget may be exceeded while all loaders are leased.
+ * Evicted decryptors are lifted again on demand.
+ */
+public class DecryptorCache
+    implements Closeable {
+
+    public static final int DEFAULT_MAX_SIZE = 128;
+
+    private final JarResourceIndex             resources;
+    private final int                          maxSize;
+    private final int                          maxClasses;
+    private final long                         metaspaceBudget;
+    private final LinkedHashMap<String, Entry> entries        = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Entry>                   removedEntries = new HashSet<>();
+
+    public DecryptorCache(File inputJar) throws IOException {
+        this(inputJar, DEFAULT_MAX_SIZE, 0, 0);
+    }
+
+    /**
+     * Creates a new DecryptorCache.
+     *
+     * @param inputJar        the jar containing the decryptor classes.
+     * @param maxSize         the maximum number of class loaders.
+     * @param maxClasses      the maximum number of classes defined by all
+     *                        class loaders, 0 means unlimited.
+     * @param metaspaceBudget the maximum total class file size in bytes of
+     *                        the classes defined by all class loaders, as
+     *                        an estimate of their metaspace use, 0 means
+     *                        unlimited.
+     */
+    public DecryptorCache(File inputJar, int maxSize, int maxClasses, long metaspaceBudget) throws IOException {
+        this.resources       = new JarResourceIndex(inputJar);
+        this.maxSize         = maxSize;
+        this.maxClasses      = maxClasses;
+        this.metaspaceBudget = metaspaceBudget;
+    }
+
+    /**
+     * Returns a lease on the lifted decryptor for the given decryptor class,
+     * lifting and loading it if it is not yet cached. The lease has to be
+     * closed once the decryptor is no longer used.
+     * <p>
+     * Lifting is performed outside the lock of the cache, so that different
+     * decryptor classes can be lifted concurrently, and recorded in the
+     * given metrics together with the created and closed class loaders.
+     */
+    public Lease acquire(ProgramClass decryptorClass, Metrics metrics) throws Exception {
+        String className = decryptorClass.getName();
+
+        synchronized (this) {
+            Entry entry = entries.get(className);
+            if (entry != null) {
+                entry.leases++;
+                return new Lease(entry, metrics);
+            }
+        }
+
+        byte[] liftedClassBytes = CodeLifter.toByteArray(CodeLifter.liftClass(decryptorClass, metrics));
+
+        // Make room for the lifted class before it gets defined.
+        List<LiftedDecryptor> evictedDecryptors;
+        synchronized (this) {
+            evictedDecryptors = evict(1, 1, liftedClassBytes.length);
+        }
+        metrics.increment(Metrics.RECYCLED_CLASS_LOADERS, evictedDecryptors.size());
+        close(evictedDecryptors, metrics);
+
+        long startTime = System.nanoTime();
+
+        LiftedDecryptor liftedDecryptor =
+            LiftedDecryptor.load(ClassUtil.externalClassName(className), liftedClassBytes, resources);
+
+        metrics.record(Metrics.Phase.CLASS_DEFINITION, startTime);
+        metrics.increment(Metrics.CLASS_LOADERS, 1);
+
+        synchronized (this) {
+            Entry entry = entries.get(className);
+            if (entry != null) {
+                // Lifted concurrently, discard our own copy.
+                close(Collections.singletonList(liftedDecryptor), metrics);
+            } else {
+                entry = new Entry(liftedDecryptor);
+                entries.put(className, entry);
+            }
+
+            entry.leases++;
+            return new Lease(entry, metrics);
+        }
+    }
+
+    /**
+     * Releases a lease on the given entry, closing its decryptor if it has
+     * been removed in the meantime, and evicts decryptors if the classes
+     * defined during the lease exceed the budget.
+     */
+    private void release(Entry entry, Metrics metrics) {
+        List<LiftedDecryptor> closedDecryptors;
+        synchronized (this) {
+            entry.leases--;
+
+            closedDecryptors = evict(0, 0, 0);
+            metrics.increment(Metrics.RECYCLED_CLASS_LOADERS, closedDecryptors.size());
+
+            if (entry.leases == 0 && removedEntries.remove(entry)) {
+                closedDecryptors.add(entry.decryptor);
+            }
+        }
+
+        close(closedDecryptors, metrics);
+    }
+
+    /**
+     * Removes the least recently used decryptors without leases until the
+     * pool, including the given additional loaders, classes and class file
+     * bytes, is within its budget, and returns them.
+     */
+    private List<LiftedDecryptor> evict(int additionalLoaders, int additionalClasses, long additionalBytes) {
+        int  loaders = entries.size()    + additionalLoaders;
+        int  classes = additionalClasses;
+        long bytes   = additionalBytes;
+        for (Entry entry : entries.values()) {
+            classes += entry.decryptor.getClassLoader().getDefinedClasses();
+            bytes   += entry.decryptor.getClassLoader().getDefinedClassBytes();
+        }
+        for (Entry entry : removedEntries) {
+            classes += entry.decryptor.getClassLoader().getDefinedClasses();
+            bytes   += entry.decryptor.getClassLoader().getDefinedClassBytes();
+        }
+
+        List<LiftedDecryptor> evictedDecryptors = new ArrayList<>();
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext() &&
+               (loaders > maxSize                                ||
+                maxClasses      > 0 && classes > maxClasses      ||
+                metaspaceBudget > 0 && bytes   > metaspaceBudget)) {
+            Entry entry = iterator.next();
+            if (entry.leases == 0) {
+                iterator.remove();
+                evictedDecryptors.add(entry.decryptor);
+
+                loaders--;
+                classes -= entry.decryptor.getClassLoader().getDefinedClasses();
+                bytes   -= entry.decryptor.getClassLoader().getDefinedClassBytes();
+            }
+        }
+
+        return evictedDecryptors;
+    }
+
+    /**
+     * Discards the lifted decryptor for the given decryptor class, so that
+     * it gets lifted into a new class loader when requested again. Its class
+     * loader is closed as soon as its last lease is released.
+     */
+    public void remove(String decryptorClassName, Metrics metrics) {
+        LiftedDecryptor closedDecryptor = null;
+        synchronized (this) {
+            Entry entry = entries.remove(decryptorClassName);
+            if (entry != null) {
+                if (entry.leases == 0) {
+                    closedDecryptor = entry.decryptor;
+                } else {
+                    removedEntries.add(entry);
+                }
+            }
+        }
+
+        if (closedDecryptor != null) {
+            close(Collections.singletonList(closedDecryptor), metrics);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static void close(List<LiftedDecryptor> decryptors, Metrics metrics) {
+        for (LiftedDecryptor decryptor : decryptors) {
+            decryptor.close();
+        }
+        metrics.increment(Metrics.CLOSED_CLASS_LOADERS, decryptors.size());
+    }
+
+    /**
+     * Closes the class loaders of all decryptors and the input jar.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                entry.decryptor.close();
+            }
+            for (Entry entry : removedEntries) {
+                entry.decryptor.close();
+            }
+            entries.clear();
+            removedEntries.clear();
+        }
+
+        resources.close();
+    }
+
+    /**
+     * A cached decryptor together with the number of its leases.
+     */
+    private static class Entry {
+        private final LiftedDecryptor decryptor;
+        private       int             leases;
+
+        Entry(LiftedDecryptor decryptor) {
+            this.decryptor = decryptor;
+        }
+    }
+
+    /**
+     * The use of a cached decryptor, which is not closed before the lease
+     * is released.
+     */
+    public class Lease
+        implements AutoCloseable {
+
+        private final Entry   entry;
+        private final Metrics metrics;
+        private       boolean released;
+
+        private Lease(Entry entry, Metrics metrics) {
+            this.entry   = entry;
+            this.metrics = metrics;
+        }
+
+        public LiftedDecryptor getDecryptor() {
+            return entry.decryptor;
+        }
+
+        /**
+         * Releases the lease, calling it again has no effect.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+
+            release(entry, metrics);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.SecureClassLoader;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class loader of a single lifted decryptor class.
+ * <p>
+ * All other classes and resources are read from the shared
+ * {@link JarResourceIndex} of the input jar. Classes are defined with the
+ * code source of the jar, as decryptors may check their own location.
+ * Once closed, the loader does not define any further classes, so that it
+ * can be unloaded together with its classes as soon as it is no longer
+ * referenced.
+ */
+public class DecryptorClassLoader
+    extends SecureClassLoader
+    implements Closeable {
+
+    private final    JarResourceIndex resources;
+    private final    String           liftedClassName;
+    private          byte[]           liftedClassBytes;
+    private final    AtomicInteger    definedClasses    = new AtomicInteger();
+    private final    AtomicLong       definedClassBytes = new AtomicLong();
+    private volatile boolean          closed;
+
+    /**
+     * Creates a new DecryptorClassLoader.
+     *
+     * @param resources         the classes and resources of the input jar.
+     * @param parent            the parent class loader.
+     * @param liftedClassName   the external name of the lifted class.
+     * @param liftedClassBytes  the class file of the lifted class.
+     */
+    public DecryptorClassLoader(JarResourceIndex resources,
+                                ClassLoader      parent,
+                                String           liftedClassName,
+                                byte[]           liftedClassBytes) {
+        super(parent);
+
+        this.resources        = resources;
+        this.liftedClassName  = liftedClassName;
+        this.liftedClassBytes = liftedClassBytes;
+    }
+
+    /**
+     * Returns the number of classes defined by this loader.
+     */
+    public int getDefinedClasses() {
+        return definedClasses.get();
+    }
+
+    /**
+     * Returns the total class file size of the classes defined by this
+     * loader, as an estimate of their metaspace use.
+     */
+    public long getDefinedClassBytes() {
+        return definedClassBytes.get();
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if (closed) {
+            throw new ClassNotFoundException(name + " (class loader closed)");
+        }
+
+        byte[] classBytes;
+        synchronized (this) {
+            if (name.equals(liftedClassName) && liftedClassBytes != null) {
+                classBytes       = liftedClassBytes;
+                liftedClassBytes = null;
+            } else {
+                try {
+                    classBytes = resources.getBytes(name.replace('.', '/') + ".class");
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        }
+
+        if (classBytes == null) {
+            throw new ClassNotFoundException(name);
+        }
+
+        definePackageOf(name);
+
+        Class<?> clazz = defineClass(name, classBytes, 0, classBytes.length, resources.getCodeSource());
+
+        definedClasses.incrementAndGet();
+        definedClassBytes.addAndGet(classBytes.length);
+
+        return clazz;
+    }
+
+    /**
+     * Defines the given class that has been generated for the lifted class,
+     * such as a bridge to one of its methods.
+     */
+    public Class<?> defineGeneratedClass(String name, byte[] classBytes) throws ClassNotFoundException {
+        if (closed) {
+            throw new ClassNotFoundException(name + " (class loader closed)");
+        }
+
+        Class<?> clazz;
+        synchronized (getClassLoadingLock(name)) {
+            clazz = defineClass(name, classBytes, 0, classBytes.length, resources.getCodeSource());
+        }
+
+        definedClasses.incrementAndGet();
+        definedClassBytes.addAndGet(classBytes.length);
+
+        return clazz;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void definePackageOf(String className) {
+        int index = className.lastIndexOf('.');
+        if (index > 0) {
+            String packageName = className.substring(0, index);
+            if (getPackage(packageName) == null) {
+                try {
+                    definePackage(packageName, null, null, null, null, null, null, null);
+                } catch (IllegalArgumentException e) {
+                    // defined concurrently.
+                }
+            }
+        }
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        return closed ? null : resources.getResource(name);
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+        URL url = findResource(name);
+        return url != null ?
+            Collections.enumeration(Collections.singletonList(url)) :
+            Collections.emptyEnumeration();
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        ClassLoader parent      = getParent();
+        InputStream inputStream = parent != null ? parent.getResourceAsStream(name) : null;
+        if (inputStream != null || closed) {
+            return inputStream;
+        }
+
+        // Read the resource from the shared jar instead of opening it again.
+        try {
+            byte[] bytes = resources.getBytes(name);
+            return bytes != null ? new ByteArrayInputStream(bytes) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stops defining classes and releases the lifted class file. The
+     * shared jar is not closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        synchronized (this) {
+            liftedClassBytes = null;
+        }
+    }
+}
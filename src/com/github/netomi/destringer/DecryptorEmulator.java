@@ -0,0 +1,1468 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.AccessConstants;
+import proguard.classfile.ClassConstants;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.ProgramField;
+import proguard.classfile.ProgramMethod;
+import proguard.classfile.attribute.Attribute;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.attribute.ConstantValueAttribute;
+import proguard.classfile.attribute.ExceptionInfo;
+import proguard.classfile.constant.Constant;
+import proguard.classfile.instruction.Instruction;
+import proguard.classfile.util.ClassUtil;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interprets the bytecode of the decrypt methods of a decryptor class,
+ * without loading the class into the current JVM.
+ * <p>
+ * The emulator supports the instructions and library methods that are
+ * typically used by stringer decryptors: arithmetic, arrays, strings and
+ * string builders, as well as the stack trace and constant pool size
+ * checks, which are answered with the given caller context. Library calls
+ * are restricted to a fixed set of side-effect free classes.
+ * <p>
+ * The static state of the decryptor class is initialized once by
+ * interpreting its static initializer and kept across invocations.
+ * Anything that is not supported results in an {@link EmulationException}.
+ */
+public class DecryptorEmulator {
+
+    private static final long MAX_INSTRUCTIONS = 50_000_000L;
+    private static final int  MAX_CALL_DEPTH   = 64;
+
+    // The library classes whose methods may be invoked by reflection.
+    private static final Set<String> ALLOWED_CLASSES = new HashSet<>(Arrays.asList(
+        "java/lang/Object",
+        "java/lang/String",
+        "java/lang/StringBuilder",
+        "java/lang/StringBuffer",
+        "java/lang/Math",
+        "java/lang/Integer",
+        "java/lang/Long",
+        "java/lang/Short",
+        "java/lang/Byte",
+        "java/lang/Character",
+        "java/lang/Boolean",
+        "java/lang/StackTraceElement",
+        "java/lang/Throwable",
+        "java/lang/Exception",
+        "java/lang/RuntimeException",
+        "java/lang/IllegalArgumentException",
+        "java/lang/IllegalStateException",
+        "java/util/Arrays"
+    ));
+
+    // The methods of java.lang.Object that may be invoked.
+    private static final Set<String> ALLOWED_OBJECT_METHODS = new HashSet<>(Arrays.asList(
+        "<init>", "hashCode", "equals", "toString"
+    ));
+
+    // The resolved library methods and constructors, shared by all emulators.
+    private static final Map<String, Member> LIBRARY_MEMBERS = new ConcurrentHashMap<>();
+
+    // Markers for values that are emulated.
+    private static final Object CURRENT_THREAD   = new Object();
+    private static final Object JAVA_LANG_ACCESS = new Object();
+
+    private final ProgramClass        decryptorClass;
+    private final String              externalClassName;
+    private final Map<String, Object> staticFields = new HashMap<>();
+    private final Deque<String>       callStack    = new ArrayDeque<>();
+
+    private boolean          initialized;
+    private RuntimeException initializationFailure;
+    private long             executedInstructions;
+
+    private String callerClassName;
+    private String callerMethodName;
+    private int    constantPoolSize;
+
+    public DecryptorEmulator(ProgramClass decryptorClass) {
+        this.decryptorClass    = decryptorClass;
+        this.externalClassName = ClassUtil.externalClassName(decryptorClass.getName());
+    }
+
+    /**
+     * Emulates the given decrypt method with the given caller context.
+     *
+     * @throws EmulationException if the decrypt method uses unsupported features.
+     * @throws Exception          if the emulated code throws an exception.
+     */
+    public synchronized String decrypt(String methodName,
+                                       Object argument,
+                                       String callerClassName,
+                                       String callerMethodName,
+                                       int    constantPoolSize) throws Exception {
+
+        this.callerClassName  = callerClassName;
+        this.callerMethodName = callerMethodName;
+        this.constantPoolSize = constantPoolSize;
+
+        executedInstructions = 0;
+        callStack.clear();
+
+        try {
+            initialize();
+
+            Object result = invokeMethod(methodName, CallSiteCollector.DECRYPT_METHOD_TYPE, new Object[] { argument });
+            return (String) result;
+        } catch (GuestException e) {
+            // The emulated code has thrown an exception that it did not catch.
+            Throwable throwable = e.getCause();
+            if (throwable instanceof Exception) {
+                throw (Exception) throwable;
+            }
+            throw new RuntimeException(throwable);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Interprets the static initializer of the decryptor class, if not done yet.
+     */
+    private void initialize() throws Throwable {
+        if (initializationFailure != null) {
+            throw initializationFailure;
+        }
+
+        if (!initialized) {
+            initialized = true;
+
+            initializeStaticFields();
+
+            if (decryptorClass.findMethod(ClassConstants.METHOD_NAME_CLINIT, ClassConstants.METHOD_TYPE_CLINIT) != null) {
+                try {
+                    invokeMethod(ClassConstants.METHOD_NAME_CLINIT, ClassConstants.METHOD_TYPE_CLINIT, new Object[0]);
+                } catch (EmulationException e) {
+                    initializationFailure = e;
+                    throw e;
+                } catch (Throwable t) {
+                    Throwable failure = t instanceof GuestException ? t.getCause() : t;
+                    initializationFailure = new EmulationException("static initializer failed: " + failure, failure);
+                    throw initializationFailure;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets all static fields of the decryptor class to their constant value,
+     * or otherwise to the default value of their type.
+     */
+    private void initializeStaticFields() {
+        for (int index = 0; index < decryptorClass.u2fieldsCount; index++) {
+            ProgramField field = decryptorClass.fields[index];
+            if ((field.getAccessFlags() & AccessConstants.STATIC) == 0) {
+                continue;
+            }
+
+            String type  = field.getDescriptor(decryptorClass);
+            Object value = defaultValue(type);
+
+            for (int attributeIndex = 0; attributeIndex < field.u2attributesCount; attributeIndex++) {
+                Attribute attribute = field.attributes[attributeIndex];
+                if (attribute instanceof ConstantValueAttribute) {
+                    value = loadConstant(((ConstantValueAttribute) attribute).u2constantValueIndex);
+                }
+            }
+
+            staticFields.put(field.getName(decryptorClass) + ':' + type, value);
+        }
+    }
+
+    private Object invokeMethod(String name, String descriptor, Object[] arguments) throws Throwable {
+        ProgramMethod method = (ProgramMethod) decryptorClass.findMethod(name, descriptor);
+        if (method == null) {
+            throw new EmulationException("method " + name + descriptor + " not found");
+        }
+
+        CodeAttribute codeAttribute = null;
+        for (int i = 0; i < method.u2attributesCount; i++) {
+            if (method.attributes[i] instanceof CodeAttribute) {
+                codeAttribute = (CodeAttribute) method.attributes[i];
+            }
+        }
+        if (codeAttribute == null) {
+            throw new EmulationException("method " + name + descriptor + " has no code");
+        }
+
+        if (callStack.size() >= MAX_CALL_DEPTH) {
+            throw new EmulationException("maximum call depth exceeded");
+        }
+
+        // Initialize the local variables with the arguments, category 2
+        // values take up two entries.
+        Object[]     locals         = new Object[Math.max(codeAttribute.u2maxLocals, 2 * arguments.length)];
+        List<String> parameterTypes = parameterTypes(descriptor);
+
+        int index = 0;
+        for (int i = 0; i < arguments.length; i++) {
+            locals[index] = arguments[i];
+            index += isCategory2(parameterTypes.get(i)) ? 2 : 1;
+        }
+
+        callStack.push(name);
+        try {
+            return execute(codeAttribute, new Frame(locals, codeAttribute.u2maxStack));
+        } finally {
+            callStack.pop();
+        }
+    }
+
+    private Object execute(CodeAttribute codeAttribute, Frame frame) throws Throwable {
+        byte[] code = codeAttribute.code;
+        int    pc   = 0;
+
+        while (true) {
+            if (++executedInstructions > MAX_INSTRUCTIONS) {
+                throw new EmulationException("maximum number of instructions exceeded");
+            }
+
+            int instructionOffset = pc;
+
+            try {
+                byte opcode = code[pc];
+                boolean wide = false;
+
+                if (opcode == Instruction.OP_WIDE) {
+                    wide   = true;
+                    opcode = code[++pc];
+                }
+
+                switch (opcode) {
+                    case Instruction.OP_NOP:
+                        pc++;
+                        break;
+
+                    case Instruction.OP_ACONST_NULL:
+                        frame.push(null);
+                        pc++;
+                        break;
+
+                    case Instruction.OP_ICONST_M1:
+                    case Instruction.OP_ICONST_0:
+                    case Instruction.OP_ICONST_1:
+                    case Instruction.OP_ICONST_2:
+                    case Instruction.OP_ICONST_3:
+                    case Instruction.OP_ICONST_4:
+                    case Instruction.OP_ICONST_5:
+                        frame.push(opcode - Instruction.OP_ICONST_0);
+                        pc++;
+                        break;
+
+                    case Instruction.OP_LCONST_0:
+                    case Instruction.OP_LCONST_1:
+                        frame.push((long) (opcode - Instruction.OP_LCONST_0));
+                        pc++;
+                        break;
+
+                    case Instruction.OP_FCONST_0:
+                    case Instruction.OP_FCONST_1:
+                    case Instruction.OP_FCONST_2:
+                        frame.push((float) (opcode - Instruction.OP_FCONST_0));
+                        pc++;
+                        break;
+
+                    case Instruction.OP_DCONST_0:
+                    case Instruction.OP_DCONST_1:
+                        frame.push((double) (opcode - Instruction.OP_DCONST_0));
+                        pc++;
+                        break;
+
+                    case Instruction.OP_BIPUSH:
+                        frame.push((int) code[pc + 1]);
+                        pc += 2;
+                        break;
+
+                    case Instruction.OP_SIPUSH:
+                        frame.push(s2(code, pc + 1));
+                        pc += 3;
+                        break;
+
+                    case Instruction.OP_LDC:
+                        frame.push(loadConstant(u1(code, pc + 1)));
+                        pc += 2;
+                        break;
+
+                    case Instruction.OP_LDC_W:
+                    case Instruction.OP_LDC2_W:
+                        frame.push(loadConstant(u2(code, pc + 1)));
+                        pc += 3;
+                        break;
+
+                    case Instruction.OP_ILOAD:
+                    case Instruction.OP_LLOAD:
+                    case Instruction.OP_FLOAD:
+                    case Instruction.OP_DLOAD:
+                    case Instruction.OP_ALOAD:
+                        frame.push(frame.locals[wide ? u2(code, pc + 1) : u1(code, pc + 1)]);
+                        pc += wide ? 3 : 2;
+                        break;
+
+                    case Instruction.OP_ILOAD_0:
+                    case Instruction.OP_ILOAD_1:
+                    case Instruction.OP_ILOAD_2:
+                    case Instruction.OP_ILOAD_3:
+                        frame.push(frame.locals[opcode - Instruction.OP_ILOAD_0]);
+                        pc++;
+                        break;
+
+                    case Instruction.OP_LLOAD_0:
+                    case Instruction.OP_LLOAD_1:
+                    case Instruction.OP_LLOAD_2:
+                    case Instruction.OP_LLOAD_3:
+                        frame.push(frame.locals[opcode - Instruction.OP_LLOAD_0]);
+                        pc++;
+                        break;
+
+                    case Instruction.OP_FLOAD_0:
+                    case Instruction.OP_FLOAD_1:
+                    case Instruction.OP_FLOAD_2:
+                    case Instruction.OP_FLOAD_3:
+                        frame.push(frame.locals[opcode - Instruction.OP_FLOAD_0]);
+                        pc++;
+                        break;
+
+                    case Instruction.OP_DLOAD_0:
+                    case Instruction.OP_DLOAD_1:
+                    case Instruction.OP_DLOAD_2:
+                    case Instruction.OP_DLOAD_3:
+                        frame.push(frame.locals[opcode - Instruction.OP_DLOAD_0]);
+                        pc++;
+                        break;
+
+                    case Instruction.OP_ALOAD_0:
+                    case Instruction.OP_ALOAD_1:
+                    case Instruction.OP_ALOAD_2:
+                    case Instruction.OP_ALOAD_3:
+                        frame.push(frame.locals[opcode - Instruction.OP_ALOAD_0]);
+                        pc++;
+                        break;
+
+                    case Instruction.OP_IALOAD: {
+                        int index = frame.popInt();
+                        frame.push(((int[]) array(frame.pop(), index))[index]);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_LALOAD: {
+                        int index = frame.popInt();
+                        frame.push(((long[]) array(frame.pop(), index))[index]);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_FALOAD: {
+                        int index = frame.popInt();
+                        frame.push(((float[]) array(frame.pop(), index))[index]);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_DALOAD: {
+                        int index = frame.popInt();
+                        frame.push(((double[]) array(frame.pop(), index))[index]);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_AALOAD: {
+                        int index = frame.popInt();
+                        frame.push(((Object[]) array(frame.pop(), index))[index]);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_BALOAD: {
+                        int    index = frame.popInt();
+                        Object array = array(frame.pop(), index);
+                        frame.push(array instanceof boolean[] ?
+                                       (((boolean[]) array)[index] ? 1 : 0) :
+                                       (int) ((byte[]) array)[index]);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_CALOAD: {
+                        int index = frame.popInt();
+                        frame.push((int) ((char[]) array(frame.pop(), index))[index]);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_SALOAD: {
+                        int index = frame.popInt();
+                        frame.push((int) ((short[]) array(frame.pop(), index))[index]);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_ISTORE:
+                    case Instruction.OP_LSTORE:
+                    case Instruction.OP_FSTORE:
+                    case Instruction.OP_DSTORE:
+                    case Instruction.OP_ASTORE:
+                        frame.locals[wide ? u2(code, pc + 1) : u1(code, pc + 1)] = frame.pop();
+                        pc += wide ? 3 : 2;
+                        break;
+
+                    case Instruction.OP_ISTORE_0:
+                    case Instruction.OP_ISTORE_1:
+                    case Instruction.OP_ISTORE_2:
+                    case Instruction.OP_ISTORE_3:
+                        frame.locals[opcode - Instruction.OP_ISTORE_0] = frame.pop();
+                        pc++;
+                        break;
+
+                    case Instruction.OP_LSTORE_0:
+                    case Instruction.OP_LSTORE_1:
+                    case Instruction.OP_LSTORE_2:
+                    case Instruction.OP_LSTORE_3:
+                        frame.locals[opcode - Instruction.OP_LSTORE_0] = frame.pop();
+                        pc++;
+                        break;
+
+                    case Instruction.OP_FSTORE_0:
+                    case Instruction.OP_FSTORE_1:
+                    case Instruction.OP_FSTORE_2:
+                    case Instruction.OP_FSTORE_3:
+                        frame.locals[opcode - Instruction.OP_FSTORE_0] = frame.pop();
+                        pc++;
+                        break;
+
+                    case Instruction.OP_DSTORE_0:
+                    case Instruction.OP_DSTORE_1:
+                    case Instruction.OP_DSTORE_2:
+                    case Instruction.OP_DSTORE_3:
+                        frame.locals[opcode - Instruction.OP_DSTORE_0] = frame.pop();
+                        pc++;
+                        break;
+
+                    case Instruction.OP_ASTORE_0:
+                    case Instruction.OP_ASTORE_1:
+                    case Instruction.OP_ASTORE_2:
+                    case Instruction.OP_ASTORE_3:
+                        frame.locals[opcode - Instruction.OP_ASTORE_0] = frame.pop();
+                        pc++;
+                        break;
+
+                    case Instruction.OP_IASTORE: {
+                        int value = frame.popInt();
+                        int index = frame.popInt();
+                        ((int[]) array(frame.pop(), index))[index] = value;
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_LASTORE: {
+                        long value = frame.popLong();
+                        int  index = frame.popInt();
+                        ((long[]) array(frame.pop(), index))[index] = value;
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_FASTORE: {
+                        float value = frame.popFloat();
+                        int   index = frame.popInt();
+                        ((float[]) array(frame.pop(), index))[index] = value;
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_DASTORE: {
+                        double value = frame.popDouble();
+                        int    index = frame.popInt();
+                        ((double[]) array(frame.pop(), index))[index] = value;
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_AASTORE: {
+                        Object value = frame.pop();
+                        int    index = frame.popInt();
+                        ((Object[]) array(frame.pop(), index))[index] = value;
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_BASTORE: {
+                        int    value = frame.popInt();
+                        int    index = frame.popInt();
+                        Object array = array(frame.pop(), index);
+                        if (array instanceof boolean[]) {
+                            ((boolean[]) array)[index] = (value & 1) != 0;
+                        } else {
+                            ((byte[]) array)[index] = (byte) value;
+                        }
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_CASTORE: {
+                        int value = frame.popInt();
+                        int index = frame.popInt();
+                        ((char[]) array(frame.pop(), index))[index] = (char) value;
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_SASTORE: {
+                        int value = frame.popInt();
+                        int index = frame.popInt();
+                        ((short[]) array(frame.pop(), index))[index] = (short) value;
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_POP:
+                        frame.pop();
+                        pc++;
+                        break;
+
+                    case Instruction.OP_POP2:
+                        if (!isCategory2(frame.pop())) {
+                            frame.pop();
+                        }
+                        pc++;
+                        break;
+
+                    case Instruction.OP_DUP:
+                        frame.push(frame.peek(0));
+                        pc++;
+                        break;
+
+                    case Instruction.OP_DUP_X1: {
+                        Object value1 = frame.pop();
+                        Object value2 = frame.pop();
+                        frame.push(value1);
+                        frame.push(value2);
+                        frame.push(value1);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_DUP_X2: {
+                        Object value1 = frame.pop();
+                        Object value2 = frame.pop();
+                        if (isCategory2(value2)) {
+                            frame.push(value1);
+                            frame.push(value2);
+                        } else {
+                            Object value3 = frame.pop();
+                            frame.push(value1);
+                            frame.push(value3);
+                            frame.push(value2);
+                        }
+                        frame.push(value1);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_DUP2: {
+                        Object value1 = frame.peek(0);
+                        if (isCategory2(value1)) {
+                            frame.push(value1);
+                        } else {
+                            Object value2 = frame.peek(1);
+                            frame.push(value2);
+                            frame.push(value1);
+                        }
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_DUP2_X1: {
+                        Object value1 = frame.pop();
+                        if (isCategory2(value1)) {
+                            Object value2 = frame.pop();
+                            frame.push(value1);
+                            frame.push(value2);
+                            frame.push(value1);
+                        } else {
+                            Object value2 = frame.pop();
+                            Object value3 = frame.pop();
+                            frame.push(value2);
+                            frame.push(value1);
+                            frame.push(value3);
+                            frame.push(value2);
+                            frame.push(value1);
+                        }
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_DUP2_X2:
+                        throw new EmulationException("unsupported instruction dup2_x2");
+
+                    case Instruction.OP_SWAP: {
+                        Object value1 = frame.pop();
+                        Object value2 = frame.pop();
+                        frame.push(value1);
+                        frame.push(value2);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_IADD: { int b = frame.popInt(); frame.push(frame.popInt() + b); pc++; break; }
+                    case Instruction.OP_ISUB: { int b = frame.popInt(); frame.push(frame.popInt() - b); pc++; break; }
+                    case Instruction.OP_IMUL: { int b = frame.popInt(); frame.push(frame.popInt() * b); pc++; break; }
+                    case Instruction.OP_IDIV: { int b = divisor(frame.popInt()); frame.push(frame.popInt() / b); pc++; break; }
+                    case Instruction.OP_IREM: { int b = divisor(frame.popInt()); frame.push(frame.popInt() % b); pc++; break; }
+                    case Instruction.OP_INEG: { frame.push(-frame.popInt()); pc++; break; }
+                    case Instruction.OP_ISHL: { int b = frame.popInt(); frame.push(frame.popInt() << b); pc++; break; }
+                    case Instruction.OP_ISHR: { int b = frame.popInt(); frame.push(frame.popInt() >> b); pc++; break; }
+                    case Instruction.OP_IUSHR: { int b = frame.popInt(); frame.push(frame.popInt() >>> b); pc++; break; }
+                    case Instruction.OP_IAND: { int b = frame.popInt(); frame.push(frame.popInt() & b); pc++; break; }
+                    case Instruction.OP_IOR:  { int b = frame.popInt(); frame.push(frame.popInt() | b); pc++; break; }
+                    case Instruction.OP_IXOR: { int b = frame.popInt(); frame.push(frame.popInt() ^ b); pc++; break; }
+
+                    case Instruction.OP_LADD: { long b = frame.popLong(); frame.push(frame.popLong() + b); pc++; break; }
+                    case Instruction.OP_LSUB: { long b = frame.popLong(); frame.push(frame.popLong() - b); pc++; break; }
+                    case Instruction.OP_LMUL: { long b = frame.popLong(); frame.push(frame.popLong() * b); pc++; break; }
+                    case Instruction.OP_LDIV: { long b = divisor(frame.popLong()); frame.push(frame.popLong() / b); pc++; break; }
+                    case Instruction.OP_LREM: { long b = divisor(frame.popLong()); frame.push(frame.popLong() % b); pc++; break; }
+                    case Instruction.OP_LNEG: { frame.push(-frame.popLong()); pc++; break; }
+                    case Instruction.OP_LSHL: { int b = frame.popInt(); frame.push(frame.popLong() << b); pc++; break; }
+                    case Instruction.OP_LSHR: { int b = frame.popInt(); frame.push(frame.popLong() >> b); pc++; break; }
+                    case Instruction.OP_LUSHR: { int b = frame.popInt(); frame.push(frame.popLong() >>> b); pc++; break; }
+                    case Instruction.OP_LAND: { long b = frame.popLong(); frame.push(frame.popLong() & b); pc++; break; }
+                    case Instruction.OP_LOR:  { long b = frame.popLong(); frame.push(frame.popLong() | b); pc++; break; }
+                    case Instruction.OP_LXOR: { long b = frame.popLong(); frame.push(frame.popLong() ^ b); pc++; break; }
+
+                    case Instruction.OP_FADD: { float b = frame.popFloat(); frame.push(frame.popFloat() + b); pc++; break; }
+                    case Instruction.OP_FSUB: { float b = frame.popFloat(); frame.push(frame.popFloat() - b); pc++; break; }
+                    case Instruction.OP_FMUL: { float b = frame.popFloat(); frame.push(frame.popFloat() * b); pc++; break; }
+                    case Instruction.OP_FDIV: { float b = frame.popFloat(); frame.push(frame.popFloat() / b); pc++; break; }
+                    case Instruction.OP_FREM: { float b = frame.popFloat(); frame.push(frame.popFloat() % b); pc++; break; }
+                    case Instruction.OP_FNEG: { frame.push(-frame.popFloat()); pc++; break; }
+
+                    case Instruction.OP_DADD: { double b = frame.popDouble(); frame.push(frame.popDouble() + b); pc++; break; }
+                    case Instruction.OP_DSUB: { double b = frame.popDouble(); frame.push(frame.popDouble() - b); pc++; break; }
+                    case Instruction.OP_DMUL: { double b = frame.popDouble(); frame.push(frame.popDouble() * b); pc++; break; }
+                    case Instruction.OP_DDIV: { double b = frame.popDouble(); frame.push(frame.popDouble() / b); pc++; break; }
+                    case Instruction.OP_DREM: { double b = frame.popDouble(); frame.push(frame.popDouble() % b); pc++; break; }
+                    case Instruction.OP_DNEG: { frame.push(-frame.popDouble()); pc++; break; }
+
+                    case Instruction.OP_IINC: {
+                        int index     = wide ? u2(code, pc + 1) : u1(code, pc + 1);
+                        int increment = wide ? s2(code, pc + 3) : code[pc + 2];
+                        frame.locals[index] = (Integer) frame.locals[index] + increment;
+                        pc += wide ? 5 : 3;
+                        break;
+                    }
+
+                    case Instruction.OP_I2L: frame.push((long)   frame.popInt());    pc++; break;
+                    case Instruction.OP_I2F: frame.push((float)  frame.popInt());    pc++; break;
+                    case Instruction.OP_I2D: frame.push((double) frame.popInt());    pc++; break;
+                    case Instruction.OP_L2I: frame.push((int)    frame.popLong());   pc++; break;
+                    case Instruction.OP_L2F: frame.push((float)  frame.popLong());   pc++; break;
+                    case Instruction.OP_L2D: frame.push((double) frame.popLong());   pc++; break;
+                    case Instruction.OP_F2I: frame.push((int)    frame.popFloat());  pc++; break;
+                    case Instruction.OP_F2L: frame.push((long)   frame.popFloat());  pc++; break;
+                    case Instruction.OP_F2D: frame.push((double) frame.popFloat());  pc++; break;
+                    case Instruction.OP_D2I: frame.push((int)    frame.popDouble()); pc++; break;
+                    case Instruction.OP_D2L: frame.push((long)   frame.popDouble()); pc++; break;
+                    case Instruction.OP_D2F: frame.push((float)  frame.popDouble()); pc++; break;
+                    case Instruction.OP_I2B: frame.push((int) (byte)  frame.popInt()); pc++; break;
+                    case Instruction.OP_I2C: frame.push((int) (char)  frame.popInt()); pc++; break;
+                    case Instruction.OP_I2S: frame.push((int) (short) frame.popInt()); pc++; break;
+
+                    case Instruction.OP_LCMP: {
+                        long b = frame.popLong();
+                        frame.push(Long.compare(frame.popLong(), b));
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_FCMPL:
+                    case Instruction.OP_FCMPG: {
+                        float b = frame.popFloat();
+                        float a = frame.popFloat();
+                        frame.push(Float.isNaN(a) || Float.isNaN(b) ?
+                                       (opcode == Instruction.OP_FCMPG ? 1 : -1) :
+                                       a < b ? -1 : a > b ? 1 : 0);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_DCMPL:
+                    case Instruction.OP_DCMPG: {
+                        double b = frame.popDouble();
+                        double a = frame.popDouble();
+                        frame.push(Double.isNaN(a) || Double.isNaN(b) ?
+                                       (opcode == Instruction.OP_DCMPG ? 1 : -1) :
+                                       a < b ? -1 : a > b ? 1 : 0);
+                        pc++;
+                        break;
+                    }
+
+                    case Instruction.OP_IFEQ: pc += frame.popInt() == 0 ? s2(code, pc + 1) : 3; break;
+                    case Instruction.OP_IFNE: pc += frame.popInt() != 0 ? s2(code, pc + 1) : 3; break;
+                    case Instruction.OP_IFLT: pc += frame.popInt() <  0 ? s2(code, pc + 1) : 3; break;
+                    case Instruction.OP_IFGE: pc += frame.popInt() >= 0 ? s2(code, pc + 1) : 3; break;
+                    case Instruction.OP_IFGT: pc += frame.popInt() >  0 ? s2(code, pc + 1) : 3; break;
+                    case Instruction.OP_IFLE: pc += frame.popInt() <= 0 ? s2(code, pc + 1) : 3; break;
+
+                    case Instruction.OP_IFICMPEQ: { int b = frame.popInt(); pc += frame.popInt() == b ? s2(code, pc + 1) : 3; break; }
+                    case Instruction.OP_IFICMPNE: { int b = frame.popInt(); pc += frame.popInt() != b ? s2(code, pc + 1) : 3; break; }
+                    case Instruction.OP_IFICMPLT: { int b = frame.popInt(); pc += frame.popInt() <  b ? s2(code, pc + 1) : 3; break; }
+                    case Instruction.OP_IFICMPGE: { int b = frame.popInt(); pc += frame.popInt() >= b ? s2(code, pc + 1) : 3; break; }
+                    case Instruction.OP_IFICMPGT: { int b = frame.popInt(); pc += frame.popInt() >  b ? s2(code, pc + 1) : 3; break; }
+                    case Instruction.OP_IFICMPLE: { int b = frame.popInt(); pc += frame.popInt() <= b ? s2(code, pc + 1) : 3; break; }
+
+                    case Instruction.OP_IFACMPEQ: { Object b = frame.pop(); pc += frame.pop() == b ? s2(code, pc + 1) : 3; break; }
+                    case Instruction.OP_IFACMPNE: { Object b = frame.pop(); pc += frame.pop() != b ? s2(code, pc + 1) : 3; break; }
+
+                    case Instruction.OP_IFNULL:    pc += frame.pop() == null ? s2(code, pc + 1) : 3; break;
+                    case Instruction.OP_IFNONNULL: pc += frame.pop() != null ? s2(code, pc + 1) : 3; break;
+
+                    case Instruction.OP_GOTO:
+                        pc += s2(code, pc + 1);
+                        break;
+
+                    case Instruction.OP_GOTO_W:
+                        pc += s4(code, pc + 1);
+                        break;
+
+                    case Instruction.OP_TABLESWITCH: {
+                        int index         = frame.popInt();
+                        int operandOffset = (pc + 4) & ~3;
+                        int defaultOffset = s4(code, operandOffset);
+                        int low           = s4(code, operandOffset + 4);
+                        int high          = s4(code, operandOffset + 8);
+
+                        pc += index < low || index > high ?
+                            defaultOffset :
+                            s4(code, operandOffset + 12 + 4 * (index - low));
+                        break;
+                    }
+
+                    case Instruction.OP_LOOKUPSWITCH: {
+                        int key           = frame.popInt();
+                        int operandOffset = (pc + 4) & ~3;
+                        int jumpOffset    = s4(code, operandOffset);
+                        int pairCount     = s4(code, operandOffset + 4);
+
+                        for (int i = 0; i < pairCount; i++) {
+                            int pairOffset = operandOffset + 8 + 8 * i;
+                            if (s4(code, pairOffset) == key) {
+                                jumpOffset = s4(code, pairOffset + 4);
+                                break;
+                            }
+                        }
+                        pc += jumpOffset;
+                        break;
+                    }
+
+                    case Instruction.OP_IRETURN:
+                    case Instruction.OP_LRETURN:
+                    case Instruction.OP_FRETURN:
+                    case Instruction.OP_DRETURN:
+                    case Instruction.OP_ARETURN:
+                        return frame.pop();
+
+                    case Instruction.OP_RETURN:
+                        return null;
+
+                    case Instruction.OP_GETSTATIC:
+                        frame.push(getStatic(u2(code, pc + 1)));
+                        pc += 3;
+                        break;
+
+                    case Instruction.OP_PUTSTATIC:
+                        putStatic(u2(code, pc + 1), frame.pop());
+                        pc += 3;
+                        break;
+
+                    case Instruction.OP_INVOKEVIRTUAL:
+                    case Instruction.OP_INVOKESPECIAL:
+                    case Instruction.OP_INVOKESTATIC:
+                        invoke(frame, opcode, u2(code, pc + 1));
+                        pc += 3;
+                        break;
+
+                    case Instruction.OP_INVOKEINTERFACE:
+                        invoke(frame, opcode, u2(code, pc + 1));
+                        pc += 5;
+                        break;
+
+                    case Instruction.OP_NEW: {
+                        String className = decryptorClass.getClassName(u2(code, pc + 1));
+                        if (!ALLOWED_CLASSES.contains(className)) {
+                            throw new EmulationException("unsupported instantiation of " + className);
+                        }
+                        frame.push(new UninitializedObject(className));
+                        pc += 3;
+                        break;
+                    }
+
+                    case Instruction.OP_NEWARRAY:
+                        frame.push(newPrimitiveArray(u1(code, pc + 1), arrayLength(frame.popInt())));
+                        pc += 2;
+                        break;
+
+                    case Instruction.OP_ANEWARRAY: {
+                        String   componentName = decryptorClass.getClassName(u2(code, pc + 1));
+                        int      length        = arrayLength(frame.popInt());
+                        Class<?> componentType = libraryClassOrNull(componentName);
+
+                        frame.push(Array.newInstance(componentType != null ? componentType : Object.class, length));
+                        pc += 3;
+                        break;
+                    }
+
+                    case Instruction.OP_MULTIANEWARRAY: {
+                        String   arrayType  = decryptorClass.getClassName(u2(code, pc + 1));
+                        int      dimensions = u1(code, pc + 3);
+                        int[]    lengths    = new int[dimensions];
+                        for (int i = dimensions - 1; i >= 0; i--) {
+                            lengths[i] = arrayLength(frame.popInt());
+                        }
+
+                        Class<?> componentType = typeClass(arrayType);
+                        for (int i = 0; i < dimensions; i++) {
+                            componentType = componentType.getComponentType();
+                        }
+
+                        frame.push(Array.newInstance(componentType, lengths));
+                        pc += 4;
+                        break;
+                    }
+
+                    case Instruction.OP_ARRAYLENGTH:
+                        frame.push(Array.getLength(nonNull(frame.pop())));
+                        pc++;
+                        break;
+
+                    case Instruction.OP_ATHROW: {
+                        Object throwable = frame.pop();
+                        if (throwable instanceof Throwable) {
+                            throw new GuestException((Throwable) throwable);
+                        } else if (throwable == null) {
+                            throw new GuestException(new NullPointerException());
+                        }
+                        throw new EmulationException("unsupported throw of " + throwable);
+                    }
+
+                    case Instruction.OP_CHECKCAST:
+                        // The code has been verified, we trust the cast.
+                        pc += 3;
+                        break;
+
+                    case Instruction.OP_INSTANCEOF: {
+                        String   className = decryptorClass.getClassName(u2(code, pc + 1));
+                        Object   value     = frame.pop();
+                        Class<?> type      = libraryClassOrNull(className);
+                        if (type == null || isEmulated(value)) {
+                            throw new EmulationException("unsupported instanceof " + className);
+                        }
+                        frame.push(type.isInstance(value) ? 1 : 0);
+                        pc += 3;
+                        break;
+                    }
+
+                    case Instruction.OP_MONITORENTER:
+                    case Instruction.OP_MONITOREXIT:
+                        frame.pop();
+                        pc++;
+                        break;
+
+                    default:
+                        throw new EmulationException("unsupported opcode 0x" + Integer.toHexString(opcode & 0xff));
+                }
+            } catch (GuestException e) {
+                Throwable throwable     = e.getCause();
+                int       handlerOffset = findExceptionHandler(codeAttribute, instructionOffset, throwable);
+                if (handlerOffset < 0) {
+                    throw e;
+                }
+
+                frame.clear();
+                frame.push(throwable);
+                pc = handlerOffset;
+            } catch (EmulationException e) {
+                throw e;
+            } catch (Throwable t) {
+                // Anything else is a limitation of the emulator itself, the
+                // emulated code must not be able to catch it.
+                throw new EmulationException("emulation failed at offset " + instructionOffset + ": " + t, t);
+            }
+        }
+    }
+
+    private int findExceptionHandler(CodeAttribute codeAttribute, int offset, Throwable throwable) {
+        for (int i = 0; i < codeAttribute.u2exceptionTableLength; i++) {
+            ExceptionInfo exceptionInfo = codeAttribute.exceptionTable[i];
+
+            if (offset >= exceptionInfo.u2startPC &&
+                offset <  exceptionInfo.u2endPC) {
+
+                if (exceptionInfo.u2catchType == 0) {
+                    return exceptionInfo.u2handlerPC;
+                }
+
+                Class<?> catchType = libraryClassOrNull(decryptorClass.getClassName(exceptionInfo.u2catchType));
+                if (catchType != null && catchType.isInstance(throwable)) {
+                    return exceptionInfo.u2handlerPC;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private Object loadConstant(int constantIndex) {
+        switch (decryptorClass.getTag(constantIndex)) {
+            case Constant.INTEGER: return decryptorClass.getInteger(constantIndex);
+            case Constant.FLOAT:   return decryptorClass.getFloat(constantIndex);
+            case Constant.LONG:    return decryptorClass.getLong(constantIndex);
+            case Constant.DOUBLE:  return decryptorClass.getDouble(constantIndex);
+            case Constant.STRING:  return decryptorClass.getStringString(constantIndex);
+            default:
+                throw new EmulationException("unsupported constant with tag " + decryptorClass.getTag(constantIndex));
+        }
+    }
+
+    private Object getStatic(int constantIndex) {
+        String className = decryptorClass.getRefClassName(constantIndex);
+        String name      = decryptorClass.getRefName(constantIndex);
+        String type      = decryptorClass.getRefType(constantIndex);
+
+        if (!className.equals(decryptorClass.getName())) {
+            throw new EmulationException("unsupported field access " + className + "." + name);
+        }
+
+        String key = name + ':' + type;
+        if (!staticFields.containsKey(key)) {
+            throw new EmulationException("unsupported access to undeclared field " + className + "." + name);
+        }
+        return staticFields.get(key);
+    }
+
+    private void putStatic(int constantIndex, Object value) {
+        String className = decryptorClass.getRefClassName(constantIndex);
+        String name      = decryptorClass.getRefName(constantIndex);
+        String type      = decryptorClass.getRefType(constantIndex);
+
+        if (!className.equals(decryptorClass.getName())) {
+            throw new EmulationException("unsupported field access " + className + "." + name);
+        }
+
+        staticFields.put(name + ':' + type, value);
+    }
+
+    private void invoke(Frame frame, byte opcode, int constantIndex) throws Throwable {
+        String className  = decryptorClass.getRefClassName(constantIndex);
+        String name       = decryptorClass.getRefName(constantIndex);
+        String descriptor = decryptorClass.getRefType(constantIndex);
+
+        List<String> parameterTypes = parameterTypes(descriptor);
+        String       returnType     = descriptor.substring(descriptor.indexOf(')') + 1);
+
+        Object[] arguments = new Object[parameterTypes.size()];
+        for (int i = arguments.length - 1; i >= 0; i--) {
+            arguments[i] = frame.pop();
+        }
+
+        Object receiver = opcode == Instruction.OP_INVOKESTATIC ? null : nonNull(frame.pop());
+
+        Object result;
+        if (className.equals(decryptorClass.getName())) {
+            if (opcode != Instruction.OP_INVOKESTATIC) {
+                throw new EmulationException("unsupported instance method " + name + descriptor);
+            }
+            result = invokeMethod(name, descriptor, arguments);
+        } else {
+            result = invokeLibraryMethod(frame, className, name, descriptor, parameterTypes, receiver, arguments);
+        }
+
+        if (!returnType.equals("V")) {
+            frame.push(fromJava(result, returnType));
+        }
+    }
+
+    private Object invokeLibraryMethod(Frame        frame,
+                                       String       className,
+                                       String       name,
+                                       String       descriptor,
+                                       List<String> parameterTypes,
+                                       Object       receiver,
+                                       Object[]     arguments) throws Throwable {
+
+        // The emulated protection checks.
+        switch (className + '.' + name + descriptor) {
+            case "java/lang/Thread.currentThread()Ljava/lang/Thread;":
+                return CURRENT_THREAD;
+
+            case "java/lang/Thread.getStackTrace()[Ljava/lang/StackTraceElement;":
+                if (receiver == CURRENT_THREAD) {
+                    return stackTrace(true);
+                }
+                break;
+
+            case "java/lang/Throwable.getStackTrace()[Ljava/lang/StackTraceElement;":
+            case "java/lang/Exception.getStackTrace()[Ljava/lang/StackTraceElement;":
+            case "java/lang/RuntimeException.getStackTrace()[Ljava/lang/StackTraceElement;":
+                if (receiver instanceof Throwable) {
+                    return stackTrace(false);
+                }
+                break;
+
+            case "sun/misc/SharedSecrets.getJavaLangAccess()Lsun/misc/JavaLangAccess;":
+            case "jdk/internal/misc/SharedSecrets.getJavaLangAccess()Ljdk/internal/misc/JavaLangAccess;":
+            case "jdk/internal/access/SharedSecrets.getJavaLangAccess()Ljdk/internal/access/JavaLangAccess;":
+                return JAVA_LANG_ACCESS;
+
+            case "sun/misc/JavaLangAccess.getConstantPool(Ljava/lang/Class;)Lsun/reflect/ConstantPool;":
+            case "jdk/internal/misc/JavaLangAccess.getConstantPool(Ljava/lang/Class;)Ljdk/internal/reflect/ConstantPool;":
+            case "jdk/internal/access/JavaLangAccess.getConstantPool(Ljava/lang/Class;)Ljdk/internal/reflect/ConstantPool;":
+                if (receiver == JAVA_LANG_ACCESS &&
+                    arguments[0] instanceof EmulatedClass &&
+                    ((EmulatedClass) arguments[0]).name.equals(callerClassName)) {
+                    return new EmulatedConstantPool(constantPoolSize);
+                }
+                break;
+
+            case "sun/reflect/ConstantPool.getSize()I":
+            case "jdk/internal/reflect/ConstantPool.getSize()I":
+                if (receiver instanceof EmulatedConstantPool) {
+                    return ((EmulatedConstantPool) receiver).size;
+                }
+                break;
+
+            case "java/lang/Class.forName(Ljava/lang/String;)Ljava/lang/Class;":
+                if (arguments[0] instanceof String) {
+                    return new EmulatedClass((String) arguments[0]);
+                }
+                break;
+
+            case "java/lang/Class.getName()Ljava/lang/String;":
+                if (receiver instanceof EmulatedClass) {
+                    return ((EmulatedClass) receiver).name;
+                }
+                break;
+
+            case "java/lang/System.arraycopy(Ljava/lang/Object;ILjava/lang/Object;II)V":
+                int sourcePosition      = (Integer) arguments[1];
+                int destinationPosition = (Integer) arguments[3];
+                int length              = (Integer) arguments[4];
+                try {
+                    System.arraycopy(arguments[0], sourcePosition, arguments[2], destinationPosition, length);
+                } catch (NullPointerException | IndexOutOfBoundsException | ArrayStoreException e) {
+                    throw new GuestException(e);
+                }
+                return null;
+        }
+
+        if (!ALLOWED_CLASSES.contains(className) ||
+            className.equals(ClassConstants.NAME_JAVA_LANG_OBJECT) && !ALLOWED_OBJECT_METHODS.contains(name)) {
+            throw new EmulationException("unsupported invocation of " + className + "." + name + descriptor);
+        }
+
+        if (isEmulated(receiver) && !name.equals(ClassConstants.METHOD_NAME_INIT)) {
+            throw new EmulationException("unsupported invocation of " + className + "." + name + descriptor + " on emulated value");
+        }
+
+        Object[] javaArguments = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            if (isEmulated(arguments[i])) {
+                throw new EmulationException("unsupported emulated argument for " + className + "." + name + descriptor);
+            }
+            javaArguments[i] = toJava(arguments[i], parameterTypes.get(i));
+        }
+
+        try {
+            if (name.equals(ClassConstants.METHOD_NAME_INIT)) {
+                if (!(receiver instanceof UninitializedObject)) {
+                    throw new EmulationException("unsupported constructor invocation of " + className);
+                }
+
+                Constructor<?> constructor = (Constructor<?>) libraryMember(className, name, descriptor, parameterTypes);
+                Object         instance    = constructor.newInstance(javaArguments);
+
+                frame.replace(receiver, instance);
+                return null;
+            }
+
+            Method method = (Method) libraryMember(className, name, descriptor, parameterTypes);
+            return method.invoke(receiver, javaArguments);
+        } catch (InvocationTargetException e) {
+            Throwable throwable = e.getCause();
+            if (throwable instanceof VirtualMachineError) {
+                throw new EmulationException("invocation of " + className + "." + name + descriptor + " failed: " + throwable, throwable);
+            }
+            throw new GuestException(throwable);
+        }
+    }
+
+    private static Member libraryMember(String       className,
+                                        String       name,
+                                        String       descriptor,
+                                        List<String> parameterTypes) throws NoSuchMethodException {
+
+        String key = className + '.' + name + descriptor;
+
+        Member member = LIBRARY_MEMBERS.get(key);
+        if (member == null) {
+            Class<?>   clazz         = typeClass('L' + className + ';');
+            Class<?>[] parameterClasses = new Class<?>[parameterTypes.size()];
+            for (int i = 0; i < parameterClasses.length; i++) {
+                parameterClasses[i] = typeClass(parameterTypes.get(i));
+            }
+
+            member = name.equals(ClassConstants.METHOD_NAME_INIT) ?
+                clazz.getConstructor(parameterClasses) :
+                clazz.getMethod(name, parameterClasses);
+
+            LIBRARY_MEMBERS.put(key, member);
+        }
+        return member;
+    }
+
+    /**
+     * Returns the emulated stack trace, as seen from the innermost emulated method.
+     */
+    private StackTraceElement[] stackTrace(boolean fromThread) {
+        List<StackTraceElement> elements = new ArrayList<>();
+
+        if (fromThread) {
+            elements.add(new StackTraceElement("java.lang.Thread", "getStackTrace", "Thread.java", -1));
+        }
+
+        // The call stack is ordered from the innermost method.
+        for (String methodName : callStack) {
+            elements.add(new StackTraceElement(externalClassName, methodName, null, -1));
+        }
+
+        elements.add(new StackTraceElement(callerClassName, callerMethodName, null, -1));
+
+        return elements.toArray(new StackTraceElement[0]);
+    }
+
+    // Faults of the emulated code, raised as the JVM would.
+
+    private static Object nonNull(Object value) throws GuestException {
+        if (value == null) {
+            throw new GuestException(new NullPointerException());
+        }
+        return value;
+    }
+
+    private static Object array(Object array, int index) throws GuestException {
+        if (index < 0 || index >= Array.getLength(nonNull(array))) {
+            throw new GuestException(new ArrayIndexOutOfBoundsException(index));
+        }
+        return array;
+    }
+
+    private static int arrayLength(int length) throws GuestException {
+        if (length < 0) {
+            throw new GuestException(new NegativeArraySizeException(Integer.toString(length)));
+        }
+        return length;
+    }
+
+    private static int divisor(int value) throws GuestException {
+        if (value == 0) {
+            throw new GuestException(new ArithmeticException("/ by zero"));
+        }
+        return value;
+    }
+
+    private static long divisor(long value) throws GuestException {
+        if (value == 0) {
+            throw new GuestException(new ArithmeticException("/ by zero"));
+        }
+        return value;
+    }
+
+    private static Object newPrimitiveArray(int arrayType, int length) {
+        switch (arrayType) {
+            case 4:  return new boolean[length];
+            case 5:  return new char[length];
+            case 6:  return new float[length];
+            case 7:  return new double[length];
+            case 8:  return new byte[length];
+            case 9:  return new short[length];
+            case 10: return new int[length];
+            case 11: return new long[length];
+            default:
+                throw new EmulationException("unsupported array type " + arrayType);
+        }
+    }
+
+    private static Object defaultValue(String type) {
+        switch (type.charAt(0)) {
+            case 'Z':
+            case 'B':
+            case 'C':
+            case 'S':
+            case 'I': return 0;
+            case 'J': return 0L;
+            case 'F': return 0f;
+            case 'D': return 0d;
+            default:  return null;
+        }
+    }
+
+    /**
+     * Converts an emulated value to the Java value of the given type.
+     */
+    private static Object toJava(Object value, String type) {
+        switch (type.charAt(0)) {
+            case 'Z': return (Integer) value != 0;
+            case 'B': return (byte)  (int) (Integer) value;
+            case 'C': return (char)  (int) (Integer) value;
+            case 'S': return (short) (int) (Integer) value;
+            default:  return value;
+        }
+    }
+
+    /**
+     * Converts a Java value of the given type to an emulated value.
+     */
+    private static Object fromJava(Object value, String type) {
+        switch (type.charAt(0)) {
+            case 'Z': return (Boolean) value ? 1 : 0;
+            case 'B': return (int) (Byte) value;
+            case 'C': return (int) (Character) value;
+            case 'S': return (int) (Short) value;
+            default:  return value;
+        }
+    }
+
+    private static boolean isEmulated(Object value) {
+        return value == CURRENT_THREAD              ||
+               value == JAVA_LANG_ACCESS            ||
+               value instanceof EmulatedClass        ||
+               value instanceof EmulatedConstantPool ||
+               value instanceof UninitializedObject;
+    }
+
+    private static boolean isCategory2(Object value) {
+        return value instanceof Long || value instanceof Double;
+    }
+
+    private static boolean isCategory2(String type) {
+        return type.equals("J") || type.equals("D");
+    }
+
+    private static List<String> parameterTypes(String descriptor) {
+        List<String> types = new ArrayList<>();
+
+        int index = 1;
+        while (descriptor.charAt(index) != ')') {
+            int start = index;
+            while (descriptor.charAt(index) == '[') {
+                index++;
+            }
+            if (descriptor.charAt(index) == 'L') {
+                index = descriptor.indexOf(';', index);
+            }
+            index++;
+
+            types.add(descriptor.substring(start, index));
+        }
+        return types;
+    }
+
+    /**
+     * Returns the library class with the given internal name, or null if it
+     * is not a library class, e.g. a class of the processed jar.
+     */
+    private static Class<?> libraryClassOrNull(String className) {
+        try {
+            return typeClass(className.charAt(0) == '[' ? className : 'L' + className + ';');
+        } catch (EmulationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the class for the given type, only considering classes of
+     * the bootstrap class loader.
+     */
+    private static Class<?> typeClass(String type) {
+        switch (type.charAt(0)) {
+            case 'Z': return boolean.class;
+            case 'B': return byte.class;
+            case 'C': return char.class;
+            case 'S': return short.class;
+            case 'I': return int.class;
+            case 'J': return long.class;
+            case 'F': return float.class;
+            case 'D': return double.class;
+            case 'V': return void.class;
+        }
+
+        String name = type.charAt(0) == 'L' ?
+            type.substring(1, type.length() - 1) :
+            type;
+
+        try {
+            return Class.forName(name.replace('/', '.'), false, null);
+        } catch (ClassNotFoundException e) {
+            throw new EmulationException("unsupported type " + type);
+        }
+    }
+
+    private static int u1(byte[] code, int offset) {
+        return code[offset] & 0xff;
+    }
+
+    private static int u2(byte[] code, int offset) {
+        return (code[offset] & 0xff) << 8 | (code[offset + 1] & 0xff);
+    }
+
+    private static int s2(byte[] code, int offset) {
+        return (short) u2(code, offset);
+    }
+
+    private static int s4(byte[] code, int offset) {
+        return u2(code, offset) << 16 | u2(code, offset + 2);
+    }
+
+    /**
+     * The operand stack and local variables of an emulated method.
+     */
+    private static class Frame {
+        final Object[] locals;
+        final Object[] stack;
+        int            size;
+
+        Frame(Object[] locals, int maxStack) {
+            this.locals = locals;
+            this.stack  = new Object[Math.max(maxStack, 1)];
+        }
+
+        void push(Object value) {
+            stack[size++] = value;
+        }
+
+        Object pop() {
+            return stack[--size];
+        }
+
+        Object peek(int index) {
+            return stack[size - 1 - index];
+        }
+
+        int popInt() {
+            return (Integer) pop();
+        }
+
+        long popLong() {
+            return (Long) pop();
+        }
+
+        float popFloat() {
+            return (Float) pop();
+        }
+
+        double popDouble() {
+            return (Double) pop();
+        }
+
+        void clear() {
+            Arrays.fill(stack, null);
+            size = 0;
+        }
+
+        /**
+         * Replaces all references to the given uninitialized object.
+         */
+        void replace(Object uninitializedObject, Object instance) {
+            for (int i = 0; i < size; i++) {
+                if (stack[i] == uninitializedObject) {
+                    stack[i] = instance;
+                }
+            }
+            for (int i = 0; i < locals.length; i++) {
+                if (locals[i] == uninitializedObject) {
+                    locals[i] = instance;
+                }
+            }
+        }
+    }
+
+    private static class UninitializedObject {
+        final String className;
+
+        UninitializedObject(String className) {
+            this.className = className;
+        }
+
+        @Override
+        public String toString() {
+            return "uninitialized " + className;
+        }
+    }
+
+    private static class EmulatedClass {
+        final String name;
+
+        EmulatedClass(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class EmulatedConstantPool {
+        final int size;
+
+        EmulatedConstantPool(int size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Signals that the emulated code uses a feature that is not supported.
+     */
+    public static class EmulationException extends RuntimeException {
+        public EmulationException(String message) {
+            super(message);
+        }
+
+        public EmulationException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Carries an exception thrown by the emulated code, which may be caught
+     * by its exception handlers.
+     */
+    private static class GuestException extends Exception {
+        GuestException(Throwable throwable) {
+            super(null, throwable, false, false);
+        }
+    }
+}
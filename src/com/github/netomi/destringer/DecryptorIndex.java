@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ClassPool;
+import proguard.classfile.Clazz;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.constant.Constant;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of the classes that reference decrypt methods, built from
+ * the constant pools of the program classes.
+ * <p>
+ * Scanning the constant pool of a class is much cheaper than decoding the
+ * instructions of all its methods, so classes without any references to
+ * a method with a decrypt method descriptor are not visited any further.
+ * The referenced decryptor classes are resolved while scanning, either in
+ * the class pool itself or in an optional class pool of sibling jars.
+ * <p>
+ * Classes can be scanned concurrently.
+ */
+public class DecryptorIndex {
+
+    private final ClassPool                classPool;
+    private final ClassPool                siblingClassPool;
+    private final Set<String>              decryptMethodTypes = new HashSet<>();
+    private final Set<Clazz>               candidateClasses   = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Map<String, Set<String>> decryptMethods     = new ConcurrentHashMap<>();
+    private final Map<String, Clazz>       decryptorClasses   = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new DecryptorIndex for the given class pool, looking for
+     * references to the decrypt methods of the given patterns.
+     */
+    public DecryptorIndex(ClassPool classPool, List<CallSitePattern> patterns) {
+        this(classPool, null, patterns);
+    }
+
+    /**
+     * Creates a new DecryptorIndex for the given class pool, looking for
+     * references to the decrypt methods of the given patterns. Decryptor
+     * classes that are not part of the class pool are resolved in the
+     * given class pool of sibling jars, if any.
+     */
+    public DecryptorIndex(ClassPool classPool, ClassPool siblingClassPool, List<CallSitePattern> patterns) {
+        this.classPool        = classPool;
+        this.siblingClassPool = siblingClassPool;
+
+        for (CallSitePattern pattern : patterns) {
+            decryptMethodTypes.add(pattern.getDecryptMethodType());
+        }
+    }
+
+    /**
+     * Scans the constant pool of the given class and returns whether it
+     * references any decrypt method.
+     */
+    public boolean scan(ProgramClass programClass) {
+        boolean candidate = false;
+
+        Constant[] constantPool = programClass.constantPool;
+        for (int index = 1; index < programClass.u2constantPoolCount; index++) {
+            Constant constant = constantPool[index];
+
+            if (constant != null                          &&
+                constant.getTag() == Constant.METHODREF   &&
+                decryptMethodTypes.contains(programClass.getRefType(index))) {
+
+                String decryptorClassName = programClass.getRefClassName(index);
+
+                decryptMethods.computeIfAbsent(decryptorClassName, k -> Collections.newSetFromMap(new ConcurrentHashMap<>()))
+                              .add(programClass.getRefName(index));
+
+                if (!decryptorClasses.containsKey(decryptorClassName)) {
+                    Clazz decryptorClass = classPool.getClass(decryptorClassName);
+                    if (decryptorClass == null && siblingClassPool != null) {
+                        decryptorClass = siblingClassPool.getClass(decryptorClassName);
+                    }
+                    if (decryptorClass != null) {
+                        decryptorClasses.put(decryptorClassName, decryptorClass);
+                    }
+                }
+
+                candidate = true;
+            }
+        }
+
+        if (candidate) {
+            candidateClasses.add(programClass);
+        }
+
+        return candidate;
+    }
+
+    /**
+     * Returns whether the given class has been found to reference any
+     * decrypt method.
+     */
+    public boolean isCandidate(Clazz clazz) {
+        return candidateClasses.contains(clazz);
+    }
+
+    public int getCandidateCount() {
+        return candidateClasses.size();
+    }
+
+    /**
+     * Returns the classes that have been found to reference any decrypt
+     * method.
+     */
+    public Set<Clazz> getCandidateClasses() {
+        return Collections.unmodifiableSet(candidateClasses);
+    }
+
+    /**
+     * Returns the names of all referenced decryptor classes.
+     */
+    public Set<String> getDecryptorClassNames() {
+        return Collections.unmodifiableSet(decryptMethods.keySet());
+    }
+
+    /**
+     * Returns whether the given method descriptor is the one of a decrypt
+     * method.
+     */
+    public boolean isDecryptMethodType(String descriptor) {
+        return decryptMethodTypes.contains(descriptor);
+    }
+
+    /**
+     * Returns the resolved decryptor class with the given name, or null
+     * if it is not part of the class pool.
+     */
+    public Clazz getDecryptorClass(String decryptorClassName) {
+        return decryptorClasses.get(decryptorClassName);
+    }
+
+    /**
+     * Returns the names of the referenced decrypt methods of the given
+     * decryptor class.
+     */
+    public Set<String> getDecryptMethodNames(String decryptorClassName) {
+        Set<String> methodNames = decryptMethods.get(decryptorClassName);
+        return methodNames != null ? methodNames : Collections.emptySet();
+    }
+}
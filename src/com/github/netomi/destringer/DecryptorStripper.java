@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.*;
+import proguard.classfile.attribute.Attribute;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.attribute.visitor.AttributeVisitor;
+import proguard.classfile.constant.Constant;
+import proguard.classfile.editor.ClassEditor;
+import proguard.classfile.editor.CodeAttributeEditor;
+import proguard.classfile.editor.ConstantPoolShrinker;
+import proguard.classfile.instruction.ConstantInstruction;
+import proguard.classfile.instruction.Instruction;
+import proguard.classfile.instruction.SimpleInstruction;
+import proguard.classfile.instruction.visitor.InstructionVisitor;
+import proguard.classfile.util.ClassUtil;
+import proguard.classfile.visitor.ClassPoolVisitor;
+
+import java.util.*;
+
+/**
+ * Removes the decrypt methods that are no longer called once their call
+ * sites have been patched, together with the code and data only they use.
+ * <p>
+ * For each decryptor class of the visited class pool:
+ * <ol>
+ *     <li>decrypt methods that are neither referenced by any candidate class
+ *         nor by the remaining methods of the decryptor class are removed,
+ *         as are private methods that are only called by removed methods</li>
+ *     <li>private static fields that are only accessed by removed methods
+ *         and the static initializer are removed</li>
+ *     <li>the static initializer is removed if it has no other effects,
+ *         otherwise its stores to removed fields are replaced by pops</li>
+ *     <li>the constant pool is shrunk</li>
+ * </ol>
+ * Decryptor classes with method handles or dynamic constants are left
+ * untouched, as references through them are not tracked. References from
+ * other jars or via reflection are not taken into account.
+ */
+public class   DecryptorStripper
+    implements ClassPoolVisitor {
+
+    private final DecryptorIndex index;
+    private final Metrics        metrics;
+    private final Set<String>    modifiedClassNames = new HashSet<>();
+
+    public DecryptorStripper(DecryptorIndex index, Metrics metrics) {
+        this.index   = index;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the names of the decryptor classes that have been modified
+     * by the last visited class pool.
+     */
+    public Set<String> getModifiedClassNames() {
+        return modifiedClassNames;
+    }
+
+    @Override
+    public void visitClassPool(ClassPool classPool) {
+        modifiedClassNames.clear();
+
+        long startTime = System.nanoTime();
+
+        Map<String, Set<String>> externalReferences = externalReferences();
+
+        for (String decryptorClassName : index.getDecryptorClassNames()) {
+            // Decryptor classes of sibling jars are not part of the output.
+            Clazz decryptorClass = classPool.getClass(decryptorClassName);
+
+            if (decryptorClass instanceof ProgramClass &&
+                strip((ProgramClass) decryptorClass,
+                      externalReferences.getOrDefault(decryptorClassName, Collections.emptySet()))) {
+
+                modifiedClassNames.add(decryptorClassName);
+
+                // Hand the modified class back, e.g. to a lazy class pool.
+                classPool.addClass(decryptorClass);
+            }
+        }
+
+        metrics.record(Metrics.Phase.STRIP, startTime);
+    }
+
+    /**
+     * Returns the methods of the decryptor classes that are still referenced
+     * from the constant pools of other classes, by decryptor class name.
+     */
+    private Map<String, Set<String>> externalReferences() {
+        Set<String>              decryptorClassNames = index.getDecryptorClassNames();
+        Map<String, Set<String>> references          = new HashMap<>();
+
+        for (Clazz clazz : index.getCandidateClasses()) {
+            ProgramClass programClass = (ProgramClass) clazz;
+
+            for (int constantIndex = 1; constantIndex < programClass.u2constantPoolCount; constantIndex++) {
+                Constant constant = programClass.constantPool[constantIndex];
+
+                if (constant != null &&
+                    (constant.getTag() == Constant.METHODREF ||
+                     constant.getTag() == Constant.INTERFACE_METHODREF)) {
+
+                    String className = programClass.getRefClassName(constantIndex);
+                    if (decryptorClassNames.contains(className) &&
+                        !className.equals(programClass.getName())) {
+                        references.computeIfAbsent(className, k -> new HashSet<>())
+                                  .add(programClass.getRefName(constantIndex) + programClass.getRefType(constantIndex));
+                    }
+                }
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Strips the given decryptor class and returns whether it has been
+     * modified.
+     */
+    private boolean strip(ProgramClass decryptorClass, Set<String> externalReferences) {
+        if (hasDynamicConstants(decryptorClass)) {
+            return false;
+        }
+
+        Map<ProgramMethod, MemberReferences> references = new LinkedHashMap<>();
+        ProgramMethod                        initializer = null;
+
+        for (int index = 0; index < decryptorClass.u2methodsCount; index++) {
+            ProgramMethod method = decryptorClass.methods[index];
+            references.put(method, new MemberReferences(decryptorClass, method));
+
+            if (method.getName(decryptorClass).equals(ClassConstants.METHOD_NAME_CLINIT)) {
+                initializer = method;
+            }
+        }
+
+        Set<String> decryptMethodNames = index.getDecryptMethodNames(decryptorClass.getName());
+
+        // Remove methods until only referenced ones are left.
+        Set<ProgramMethod> deadMethods = new LinkedHashSet<>();
+        boolean            changed;
+        do {
+            changed = false;
+            for (ProgramMethod method : references.keySet()) {
+                if (deadMethods.contains(method)) {
+                    continue;
+                }
+
+                String  name          = method.getName(decryptorClass);
+                String  descriptor    = method.getDescriptor(decryptorClass);
+                boolean decryptMethod = decryptMethodNames.contains(name) && index.isDecryptMethodType(descriptor);
+                boolean privateMethod = (method.getAccessFlags() & AccessConstants.PRIVATE) != 0 &&
+                                        !name.equals(ClassConstants.METHOD_NAME_INIT)          &&
+                                        !name.equals(ClassConstants.METHOD_NAME_CLINIT);
+
+                if ((decryptMethod || privateMethod)                &&
+                    !externalReferences.contains(name + descriptor) &&
+                    !isReferenced(references, deadMethods, method, name + descriptor)) {
+                    deadMethods.add(method);
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        if (deadMethods.isEmpty()) {
+            return false;
+        }
+
+        // Collect the private static fields that only removed methods use.
+        Set<ProgramField> deadFields     = new LinkedHashSet<>();
+        Set<String>       deadFieldNames = new HashSet<>();
+
+        for (int index = 0; index < decryptorClass.u2fieldsCount; index++) {
+            ProgramField field = decryptorClass.fields[index];
+            String       key   = fieldKey(decryptorClass, field);
+
+            if ((field.getAccessFlags() & (AccessConstants.PRIVATE | AccessConstants.STATIC)) ==
+                (AccessConstants.PRIVATE | AccessConstants.STATIC) &&
+                !isAccessed(references, deadMethods, initializer, key)) {
+                deadFields.add(field);
+                deadFieldNames.add(key);
+            }
+        }
+
+        boolean removeInitializer =
+            initializer != null &&
+            references.get(initializer).isSideEffectFree(deadFieldNames);
+
+        if (initializer != null && !removeInitializer) {
+            // Keep the fields that the remaining initializer reads.
+            MemberReferences initializerReferences = references.get(initializer);
+            deadFields.removeIf(field -> initializerReferences.readFields.contains(fieldKey(decryptorClass, field)));
+            deadFieldNames.removeAll(initializerReferences.readFields);
+
+            initializerReferences.replaceFieldStores(deadFieldNames);
+        }
+
+        ClassEditor classEditor = new ClassEditor(decryptorClass);
+
+        for (ProgramMethod method : deadMethods) {
+            classEditor.removeMethod(method);
+        }
+        for (ProgramField field : deadFields) {
+            classEditor.removeField(field);
+        }
+        if (removeInitializer) {
+            classEditor.removeMethod(initializer);
+        }
+
+        decryptorClass.accept(new ConstantPoolShrinker());
+
+        metrics.increment(Metrics.STRIPPED_METHODS,      deadMethods.size());
+        metrics.increment(Metrics.STRIPPED_FIELDS,       deadFields.size());
+        metrics.increment(Metrics.STRIPPED_INITIALIZERS, removeInitializer ? 1 : 0);
+
+        return true;
+    }
+
+    private static boolean hasDynamicConstants(ProgramClass programClass) {
+        for (int index = 1; index < programClass.u2constantPoolCount; index++) {
+            Constant constant = programClass.constantPool[index];
+            if (constant != null &&
+                (constant.getTag() == Constant.METHOD_HANDLE ||
+                 constant.getTag() == Constant.DYNAMIC       ||
+                 constant.getTag() == Constant.INVOKE_DYNAMIC)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether any live method other than the given one invokes the
+     * method with the given key.
+     */
+    private static boolean isReferenced(Map<ProgramMethod, MemberReferences> references,
+                                        Set<ProgramMethod>                   deadMethods,
+                                        ProgramMethod                        method,
+                                        String                               key) {
+        for (Map.Entry<ProgramMethod, MemberReferences> entry : references.entrySet()) {
+            if (entry.getKey() != method                &&
+                !deadMethods.contains(entry.getKey())   &&
+                entry.getValue().invokedMethods.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether any live method other than the static initializer
+     * accesses the field with the given key.
+     */
+    private static boolean isAccessed(Map<ProgramMethod, MemberReferences> references,
+                                      Set<ProgramMethod>                   deadMethods,
+                                      ProgramMethod                        initializer,
+                                      String                               key) {
+        for (Map.Entry<ProgramMethod, MemberReferences> entry : references.entrySet()) {
+            if (entry.getKey() != initializer                 &&
+                !deadMethods.contains(entry.getKey())         &&
+                (entry.getValue().readFields.contains(key) ||
+                 entry.getValue().writtenFields.contains(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String fieldKey(ProgramClass programClass, ProgramField field) {
+        return field.getName(programClass) + ':' + field.getDescriptor(programClass);
+    }
+
+    /**
+     * The references of a single method to the methods and fields of its own
+     * class, and whether it has any effects beyond the fields it writes.
+     */
+    private static class MemberReferences
+        implements AttributeVisitor,
+                   InstructionVisitor {
+
+        private final ProgramClass         programClass;
+        private final ProgramMethod        method;
+        private final Set<String>          invokedMethods  = new HashSet<>();
+        private final Set<String>          readFields      = new HashSet<>();
+        private final Set<String>          writtenFields   = new HashSet<>();
+        private final Map<Integer, String> fieldStores     = new TreeMap<>();
+        private       boolean              hasOtherEffects;
+        private       CodeAttribute        codeAttribute;
+
+        MemberReferences(ProgramClass programClass, ProgramMethod method) {
+            this.programClass = programClass;
+            this.method       = method;
+
+            method.attributesAccept(programClass, this);
+        }
+
+        /**
+         * Returns whether the method only writes the given fields of its own
+         * class and has no other effects.
+         */
+        boolean isSideEffectFree(Set<String> fields) {
+            return !hasOtherEffects       &&
+                   fields.containsAll(readFields) &&
+                   fields.containsAll(writtenFields);
+        }
+
+        /**
+         * Replaces the stores to the given fields by pops of the stored values.
+         */
+        void replaceFieldStores(Set<String> fields) {
+            if (codeAttribute == null) {
+                return;
+            }
+
+            CodeAttributeEditor codeAttributeEditor = new CodeAttributeEditor();
+            codeAttributeEditor.reset(codeAttribute.u4codeLength);
+
+            for (Map.Entry<Integer, String> entry : fieldStores.entrySet()) {
+                String key = entry.getValue();
+                if (fields.contains(key)) {
+                    String type = key.substring(key.indexOf(':') + 1);
+
+                    codeAttributeEditor.replaceInstruction(entry.getKey(),
+                        new SimpleInstruction(ClassUtil.internalTypeSize(type) == 2 ?
+                                                  Instruction.OP_POP2 :
+                                                  Instruction.OP_POP));
+                }
+            }
+
+            codeAttributeEditor.visitCodeAttribute(programClass, method, codeAttribute);
+        }
+
+        // Implementations for AttributeVisitor.
+
+        @Override
+        public void visitAnyAttribute(Clazz clazz, Attribute attribute) {}
+
+        @Override
+        public void visitCodeAttribute(Clazz clazz, Method method, CodeAttribute codeAttribute) {
+            this.codeAttribute = codeAttribute;
+
+            codeAttribute.instructionsAccept(clazz, method, this);
+        }
+
+        // Implementations for InstructionVisitor.
+
+        @Override
+        public void visitAnyInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, Instruction instruction) {}
+
+        @Override
+        public void visitSimpleInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, SimpleInstruction simpleInstruction) {
+            switch (simpleInstruction.opcode) {
+                case Instruction.OP_ATHROW:
+                case Instruction.OP_MONITORENTER:
+                case Instruction.OP_MONITOREXIT:
+                    hasOtherEffects = true;
+                    break;
+            }
+        }
+
+        @Override
+        public void visitConstantInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, ConstantInstruction constantInstruction) {
+            int     constantIndex = constantInstruction.constantIndex;
+            boolean ownMember     = false;
+            String  key           = null;
+
+            switch (constantInstruction.opcode) {
+                case Instruction.OP_GETSTATIC:
+                case Instruction.OP_PUTSTATIC:
+                    // Field keys separate the name from the type, see fieldKey.
+                    ownMember = clazz.getRefClassName(constantIndex).equals(clazz.getName());
+                    key       = clazz.getRefName(constantIndex) + ':' + clazz.getRefType(constantIndex);
+                    break;
+
+                case Instruction.OP_INVOKEVIRTUAL:
+                case Instruction.OP_INVOKESPECIAL:
+                case Instruction.OP_INVOKESTATIC:
+                case Instruction.OP_INVOKEINTERFACE:
+                    ownMember = clazz.getRefClassName(constantIndex).equals(clazz.getName());
+                    key       = clazz.getRefName(constantIndex) + clazz.getRefType(constantIndex);
+                    break;
+            }
+
+            switch (constantInstruction.opcode) {
+                case Instruction.OP_GETSTATIC:
+                    if (ownMember) {
+                        readFields.add(key);
+                    } else {
+                        hasOtherEffects = true;
+                    }
+                    break;
+
+                case Instruction.OP_PUTSTATIC:
+                    if (ownMember) {
+                        writtenFields.add(key);
+                        fieldStores.put(offset, key);
+                    } else {
+                        hasOtherEffects = true;
+                    }
+                    break;
+
+                case Instruction.OP_INVOKEVIRTUAL:
+                case Instruction.OP_INVOKESPECIAL:
+                case Instruction.OP_INVOKESTATIC:
+                case Instruction.OP_INVOKEINTERFACE:
+                    if (ownMember) {
+                        invokedMethods.add(key);
+                    }
+                    // Strings are immutable, so their methods have no effects.
+                    if (!clazz.getRefClassName(constantIndex).equals(ClassConstants.NAME_JAVA_LANG_STRING)) {
+                        hasOtherEffects = true;
+                    }
+                    break;
+
+                case Instruction.OP_GETFIELD:
+                case Instruction.OP_PUTFIELD:
+                case Instruction.OP_NEW:
+                case Instruction.OP_INVOKEDYNAMIC:
+                    hasOtherEffects = true;
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The main class of a worker process that executes decrypt methods on
+ * behalf of a {@link WorkerEngine}.
+ * <p>
+ * The worker reads requests from its standard input and writes responses
+ * to its standard output, anything printed by decryptors goes to the
+ * standard error. The protocol consists of the following messages:
+ * <ul>
+ *     <li>{@link #DEFINE}: the name and bytes of a lifted decryptor class</li>
+ *     <li>{@link #BATCH}: a batch id, the name of a defined decryptor class
+ *         and a list of decryption requests, answered by the batch id and
+ *         a status and result for each request</li>
+ * </ul>
+ */
+public class DecryptorWorker {
+
+    static final int DEFINE = 1;
+    static final int BATCH  = 2;
+
+    static final int STATUS_OK     = 0;
+    static final int STATUS_FAILED = 1;
+
+    public static void main(String[] args) throws IOException {
+        // Each decryptor is defined once and kept for the lifetime of the worker.
+        JarResourceIndex resources = new JarResourceIndex(new File(args[0]));
+
+        DataInputStream  input  = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+
+        // Keep the standard output for the protocol.
+        System.setOut(System.err);
+
+        Map<String, LiftedDecryptor> decryptors = new HashMap<>();
+
+        while (true) {
+            int message;
+            try {
+                message = input.readByte();
+            } catch (EOFException e) {
+                // The parent process has closed the connection.
+                resources.close();
+                return;
+            }
+
+            switch (message) {
+                case DEFINE: {
+                    String externalClassName = readString(input);
+                    byte[] bytes             = new byte[input.readInt()];
+                    input.readFully(bytes);
+
+                    try {
+                        decryptors.put(externalClassName, LiftedDecryptor.load(externalClassName, bytes, resources));
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    }
+                    break;
+                }
+
+                case BATCH: {
+                    int    batchId           = input.readInt();
+                    String externalClassName = readString(input);
+                    int    count             = input.readInt();
+
+                    LiftedDecryptor decryptor = decryptors.get(externalClassName);
+
+                    output.writeInt(batchId);
+                    output.writeInt(count);
+
+                    for (int i = 0; i < count; i++) {
+                        String methodName       = readString(input);
+                        String argument         = readString(input);
+                        String callerClassName  = readString(input);
+                        String callerMethodName = readString(input);
+                        int    constantPoolSize = input.readInt();
+
+                        String result = null;
+                        if (decryptor != null) {
+                            try {
+                                result = decryptor.decrypt(methodName,
+                                                           argument,
+                                                           callerClassName,
+                                                           callerMethodName,
+                                                           constantPoolSize);
+                            } catch (Throwable t) {
+                                t.printStackTrace();
+                            }
+                        }
+
+                        if (result != null) {
+                            output.writeByte(STATUS_OK);
+                            writeString(output, result);
+                        } else {
+                            output.writeByte(STATUS_FAILED);
+                        }
+                    }
+
+                    output.flush();
+                    break;
+                }
+
+                default:
+                    throw new IOException("unknown message " + message);
+            }
+        }
+    }
+
+    // Strings are transferred as raw chars, so that any char sequence is preserved.
+
+    static String readString(DataInput input) throws IOException {
+        int    length = input.readInt();
+        char[] chars  = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = input.readChar();
+        }
+        return new String(chars);
+    }
+
+    static void writeString(DataOutput output, String value) throws IOException {
+        output.writeInt(value.length());
+        output.writeChars(value);
+    }
+}
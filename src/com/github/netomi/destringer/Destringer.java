@@ -25,28 +25,22 @@ import proguard.io.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
 
 public class Destringer {
 
-    private static ClassPool loadLibraryClassPool() throws IOException {
-        ClassPool libraryClassPool = new ClassPool();
-
-        File jmodDir = new File(System.getProperty("java.home") + "/jmods");
-        if (jmodDir.exists()) {
-            File[] jmodFiles = jmodDir.listFiles((dir, name) -> name.endsWith(".jmod"));
-            for (File jmodFile : jmodFiles) {
-                readJar(jmodFile.getAbsolutePath(), true, libraryClassPool);
-            }
-        } else {
-            readJar(System.getProperty("java.home") + "/jre/lib/rt.jar", true, libraryClassPool);
-        }
-
-        return libraryClassPool;
+    /**
+     * Returns a library class pool that reads the classes of the running
+     * JVM on demand.
+     */
+    static LazyLibraryClassPool loadLibraryClassPool() throws IOException {
+        return LazyLibraryClassPool.forCurrentRuntime();
     }
 
-    private static ClassPool readJar(String    jarFileName,
-                                     boolean   isLibrary,
-                                     ClassPool classPool)
+    static ClassPool readJar(String    jarFileName,
+                             boolean   isLibrary,
+                             ClassPool classPool)
             throws IOException
     {
         DataEntrySource source = new FileSource(new File(jarFileName));
@@ -82,12 +76,15 @@ public class Destringer {
         PrintWriter printWriter    = new PrintWriter(System.err);
         WarningPrinter warningPrinter = new WarningPrinter(printWriter);
 
-        // Initialize the class hierarchies.
-        libraryClassPool.classesAccept(
-            new ClassSuperHierarchyInitializer(programClassPool,
-                                               libraryClassPool,
-                                               null,
-                                               null));
+        // Initialize the class hierarchies, a lazy library class pool
+        // initializes its classes itself when they are loaded.
+        if (!(libraryClassPool instanceof LazyLibraryClassPool)) {
+            libraryClassPool.classesAccept(
+                new ClassSuperHierarchyInitializer(programClassPool,
+                                                   libraryClassPool,
+                                                   null,
+                                                   null));
+        }
 
         programClassPool.classesAccept(
             new ClassSuperHierarchyInitializer(programClassPool,
@@ -108,27 +105,166 @@ public class Destringer {
         printWriter.flush();
     }
 
+    static DecryptionEngine createEngine(DestringerOptions options, File inputJar) {
+        DecryptionEngine engine = options.getWorkers() > 0 ?
+            new WorkerEngine(inputJar, options.getWorkers(), WorkerEngine.DEFAULT_BATCH_SIZE, options.getTimeout()) :
+            new LoadingEngine(inputJar,
+                              options.getTimeout() > 0 ? new Watchdog(options.getTimeout() * 1000) : null,
+                              options.getMaxLoadedClasses(),
+                              options.getMetaspaceBudget());
+
+        if (options.getEngine() == DestringerOptions.Engine.EMULATE) {
+            // fall back to loading decryptors that can not be emulated.
+            engine = new EmulatingEngine(engine);
+        }
+
+        return engine;
+    }
+
+    /**
+     * Decrypts the strings in the given input jar with the given string
+     * decryptor and writes the result to the given output jar.
+     * <p>
+     * With a class budget, the program classes are read on demand and
+     * evicted when they exceed the budget, otherwise they are read up front
+     * on the configured number of threads. The program classes are only
+     * initialized if a library class pool is given, which the options only
+     * allow without a class budget. Optionally, decryptor
+     * code that is no longer used is removed from the output.
+     */
+    static void decryptJar(File                  inputJar,
+                           File                  outputJar,
+                           DestringerOptions     options,
+                           ClassPool             libraryClassPool,
+                           StringDecryptor       stringDecryptor,
+                           Metrics               metrics)
+            throws IOException
+    {
+        long startTime = System.nanoTime();
+
+        ClassPool programClassPool =
+            options.getClassBudget() > 0 ? new LazyProgramClassPool(inputJar, options.getClassBudget()) :
+            options.getThreads()     > 1 ? new ParallelJarReader(options.getThreads()).read(inputJar, new ClassPool()) :
+                                           readJar(inputJar.getPath(), false, new ClassPool());
+
+        metrics.record(Metrics.Phase.READ, startTime);
+
+        try {
+            if (libraryClassPool != null) {
+                startTime = System.nanoTime();
+
+                initialize(programClassPool, libraryClassPool);
+
+                metrics.record(Metrics.Phase.INITIALIZE, startTime);
+            }
+
+            programClassPool.accept(stringDecryptor);
+
+            Set<String> modifiedClassNames = new HashSet<>(stringDecryptor.getModifiedClassNames());
+
+            if (options.isStripDecryptors()) {
+                DecryptorStripper decryptorStripper =
+                    new DecryptorStripper(stringDecryptor.getDecryptorIndex(), metrics);
+
+                programClassPool.accept(decryptorStripper);
+                modifiedClassNames.addAll(decryptorStripper.getModifiedClassNames());
+            }
+
+            startTime = System.nanoTime();
+
+            // only write the modified classes, copy anything else as is.
+            new PassThroughJarWriter(inputJar).write(programClassPool,
+                                                     modifiedClassNames,
+                                                     outputJar);
+
+            metrics.record(Metrics.Phase.WRITE, startTime);
+        } finally {
+            if (programClassPool instanceof LazyProgramClassPool) {
+                ((LazyProgramClassPool) programClassPool).close();
+            }
+        }
+    }
+
+    /**
+     * Returns the result log selected by the given options, or null if
+     * no result log shall be written.
+     */
+    static ResultLog openResultLog(DestringerOptions options) throws IOException {
+        String fileName = options.getResultLogFileName();
+
+        if (fileName == null) {
+            return options.isQuiet() ? null : ResultLog.standardOutput();
+        }
+        return "-".equals(fileName) ?
+            ResultLog.standardOutput() :
+            ResultLog.open(new File(fileName));
+    }
+
     public static void main(String[] args) {
-        String inputJarFileName  = args[0];
-        String outputJarFileName = args[1];
+        DestringerOptions options;
+        try {
+            options = DestringerOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(DestringerOptions.usage());
+            System.exit(1);
+            return;
+        }
+
+        if (options.getConnectPort() > 0) {
+            System.exit(DestringerClient.submit(options.getConnectPort(), args));
+            return;
+        }
 
-        File inputJar  = new File(inputJarFileName);
+        int exitCode = 0;
 
-        try
+        try (PersistentResultCache resultCache = options.getCacheDirectory() != null ?
+                 PersistentResultCache.open(options.getCacheDirectory()) :
+                 null)
         {
-            ClassPool programClassPool = readJar(inputJarFileName, false, new ClassPool());
-            // we do not really need the library classes.
-            ClassPool libraryClassPool = new ClassPool(); //loadLibraryClassPool();
+            if (options.getDaemonPort() > 0) {
+                new DestringerServer(options.getDaemonPort(), options.getJobs(), resultCache).run();
+                return;
+            }
+
+            Metrics metrics;
 
-            //initialize(programClassPool, libraryClassPool);
+            try (ResultLog resultLog = openResultLog(options)) {
+                metrics = new Metrics(resultLog != null);
 
-            programClassPool.accept(new StringDecryptor(inputJar));
+                if (options.isBatch()) {
+                    int failedJars = new DestringerBatch(options, resultCache, resultLog).run(metrics);
+                    if (failedJars > 0) {
+                        System.err.println("failed to process " + failedJars + " jars.");
+                        exitCode = 1;
+                    }
+                } else {
+                    File inputJar = new File(options.getInputJarFileName());
 
-            writeJar(programClassPool, outputJarFileName);
+                    try (DecryptionEngine     engine           = createEngine(options, inputJar);
+                         LazyLibraryClassPool libraryClassPool = options.isInitialize() ? loadLibraryClassPool() : null) {
+                        decryptJar(inputJar,
+                                   new File(options.getOutputJarFileName()),
+                                   options,
+                                   libraryClassPool,
+                                   new StringDecryptor(engine, options.getThreads(), resultCache, resultLog, metrics),
+                                   metrics);
+                    }
+                }
+            }
+
+            if (options.getReportFile() != null) {
+                metrics.writeReport(options.getReportFile());
+            }
         }
         catch (IOException e)
         {
             e.printStackTrace();
+            exitCode = 1;
+        }
+
+        if (exitCode != 0) {
+            System.exit(exitCode);
         }
     }
 }
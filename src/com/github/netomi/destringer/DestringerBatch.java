@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ClassConstants;
+import proguard.classfile.ProgramClass;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Processes a batch of jars into an output directory, sharing the threads,
+ * the decryption engines and the result cache between the jars.
+ * <p>
+ * Jars are scheduled largest first, at most a given number at a time, and
+ * the tasks of all jars run in a single pool of the given number of
+ * threads. A decryptor class that is not part of a jar is resolved in the
+ * other jars of the batch. Decryptor classes with the same name and class
+ * file are always passed to the engine of the jar that provided them
+ * first, so that they are lifted again only if that engine has been closed
+ * in the meantime: at most a fixed number of idle engines are kept open.
+ */
+public class DestringerBatch {
+
+    // The class budget of the class pool to resolve decryptors in sibling jars.
+    private static final long SIBLING_CLASS_BUDGET = 64L * 1024L * 1024L;
+
+    // The maximum number of idle engines that are kept open.
+    private static final int MAX_CACHED_ENGINES = 16;
+
+    private final DestringerOptions       options;
+    private final PersistentResultCache   resultCache;
+    private final ResultLog               resultLog;
+    private final Map<String, List<File>> jarsByClassName = new HashMap<>();
+    private final Map<String, File>       decryptorJars   = new ConcurrentHashMap<>();
+    private final Map<File, SharedEngine> engines         = new LinkedHashMap<>();
+
+    /**
+     * Creates a new DestringerBatch.
+     *
+     * @param options     the options of the batch.
+     * @param resultCache an optional persistent cache shared by all jars.
+     * @param resultLog   an optional log shared by all jars.
+     */
+    public DestringerBatch(DestringerOptions     options,
+                           PersistentResultCache resultCache,
+                           ResultLog             resultLog) {
+        this.options     = options;
+        this.resultCache = resultCache;
+        this.resultLog   = resultLog;
+    }
+
+    /**
+     * Processes all jars of the batch and returns the number of jars that
+     * could not be processed.
+     */
+    public int run(Metrics metrics) throws IOException {
+        List<File> inputJars       = inputJars(options.getBatchInputFileNames());
+        File       outputDirectory = new File(options.getOutputDirectoryName());
+
+        checkOutputJars(inputJars, outputDirectory);
+
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("failed to create output directory " + outputDirectory);
+        }
+
+        indexClasses(inputJars);
+
+        // Start with the largest jars, so that small ones fill the gaps at the end.
+        List<File> scheduledJars = new ArrayList<>(inputJars);
+        scheduledJars.sort(Comparator.comparingLong(File::length).reversed());
+
+        ForkJoinPool    pool     = new ForkJoinPool(options.getThreads());
+        ExecutorService executor = Executors.newFixedThreadPool(options.getJobs());
+
+        try (LazyProgramClassPool siblingClassPool = new LazyProgramClassPool(inputJars, SIBLING_CLASS_BUDGET);
+             LazyLibraryClassPool libraryClassPool = options.isInitialize() ? Destringer.loadLibraryClassPool() : null) {
+
+            Map<File, Future<?>> futures = new LinkedHashMap<>();
+            for (File inputJar : scheduledJars) {
+                futures.put(inputJar, executor.submit(() -> {
+                    StringDecryptor stringDecryptor =
+                        new StringDecryptor(new JarEngine(inputJar), pool, siblingClassPool, resultCache, resultLog, metrics);
+
+                    Destringer.decryptJar(inputJar,
+                                          new File(outputDirectory, inputJar.getName()),
+                                          options,
+                                          libraryClassPool,
+                                          stringDecryptor,
+                                          metrics);
+                    return null;
+                }));
+            }
+
+            int failedJars = 0;
+            for (Map.Entry<File, Future<?>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                    System.err.println("processed " + entry.getKey());
+                } catch (ExecutionException e) {
+                    failedJars++;
+                    metrics.recordFailure(e.getCause());
+                    System.err.println("failed to process " + entry.getKey() + ": " + e.getCause());
+                    e.getCause().printStackTrace();
+                }
+            }
+            return failedJars;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("batch interrupted");
+        } finally {
+            executor.shutdownNow();
+            pool.shutdown();
+            closeEngines();
+        }
+    }
+
+    /**
+     * Returns the given jars, with directories expanded to the jars they
+     * contain.
+     */
+    private static List<File> inputJars(List<String> fileNames) throws IOException {
+        List<File> inputJars = new ArrayList<>();
+
+        for (String fileName : fileNames) {
+            File file = new File(fileName);
+
+            if (file.isDirectory()) {
+                File[] jarFiles = file.listFiles((dir, name) -> name.endsWith(".jar"));
+                if (jarFiles != null) {
+                    Arrays.sort(jarFiles);
+                    inputJars.addAll(Arrays.asList(jarFiles));
+                }
+            } else if (file.isFile()) {
+                inputJars.add(file);
+            } else {
+                throw new FileNotFoundException(fileName);
+            }
+        }
+        return inputJars;
+    }
+
+    private static void checkOutputJars(List<File> inputJars, File outputDirectory) throws IOException {
+        Set<String> jarNames = new HashSet<>();
+
+        for (File inputJar : inputJars) {
+            if (!jarNames.add(inputJar.getName())) {
+                throw new IOException("duplicate jar name " + inputJar.getName());
+            }
+
+            File outputJar = new File(outputDirectory, inputJar.getName());
+            if (outputJar.getCanonicalFile().equals(inputJar.getCanonicalFile())) {
+                throw new IOException("output jar would overwrite input jar " + inputJar);
+            }
+        }
+    }
+
+    /**
+     * Records the jars that contain each class, reading only their central
+     * directories.
+     */
+    private void indexClasses(List<File> inputJars) throws IOException {
+        for (File inputJar : inputJars) {
+            try (ZipFile jarFile = new ZipFile(inputJar)) {
+                Enumeration<? extends ZipEntry> entries = jarFile.entries();
+                while (entries.hasMoreElements()) {
+                    String entryName = entries.nextElement().getName();
+
+                    if (entryName.endsWith(ClassConstants.CLASS_FILE_EXTENSION) &&
+                        !entryName.startsWith("META-INF/")) {
+                        String className =
+                            entryName.substring(0, entryName.length() - ClassConstants.CLASS_FILE_EXTENSION.length());
+
+                        jarsByClassName.computeIfAbsent(className, k -> new ArrayList<>()).add(inputJar);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the engine for the given jar, creating it if it is not open.
+     */
+    private synchronized SharedEngine acquireEngine(File inputJar) {
+        SharedEngine engine = engines.remove(inputJar);
+        if (engine == null) {
+            engine = new SharedEngine(Destringer.createEngine(options, inputJar));
+        }
+
+        // Re-insert the engine to mark it as most recently used.
+        engines.put(inputJar, engine);
+        engine.users++;
+
+        return engine;
+    }
+
+    private synchronized void releaseEngine(SharedEngine engine) {
+        engine.users--;
+
+        // Close the least recently used idle engines beyond the limit.
+        Iterator<SharedEngine> iterator = engines.values().iterator();
+        while (engines.size() > MAX_CACHED_ENGINES && iterator.hasNext()) {
+            SharedEngine cachedEngine = iterator.next();
+            if (cachedEngine.users == 0) {
+                iterator.remove();
+                cachedEngine.close();
+            }
+        }
+    }
+
+    private synchronized void closeEngines() {
+        for (SharedEngine engine : engines.values()) {
+            engine.close();
+        }
+        engines.clear();
+    }
+
+    /**
+     * The engine of a single jar of the batch, passing each decryptor class
+     * to the engine of the jar that first provided the same class file.
+     */
+    private class JarEngine
+        implements DecryptionEngine {
+
+        private final File inputJar;
+
+        JarEngine(File inputJar) {
+            this.inputJar = inputJar;
+        }
+
+        @Override
+        public void decrypt(ProgramClass                   decryptorClass,
+                            Collection<DecryptionRequest>  requests,
+                            Map<DecryptionRequest, String> results,
+                            Metrics                        metrics) throws Exception {
+
+            String className = decryptorClass.getName();
+
+            // A decryptor class that is not part of the jar has been resolved in a sibling jar.
+            List<File> jars      = jarsByClassName.getOrDefault(className, Collections.emptyList());
+            File       sourceJar = jars.isEmpty() || jars.contains(inputJar) ? inputJar : jars.get(0);
+
+            String key =
+                className + '\u0000' +
+                Base64.getEncoder().encodeToString(PersistentResultCache.classDigest(CodeLifter.toByteArray(decryptorClass)));
+
+            SharedEngine engine = acquireEngine(decryptorJars.computeIfAbsent(key, k -> sourceJar));
+            try {
+                engine.engine.decrypt(decryptorClass, requests, results, metrics);
+            } finally {
+                releaseEngine(engine);
+            }
+        }
+    }
+
+    /**
+     * An engine together with the number of its current users.
+     */
+    private static class SharedEngine {
+        final DecryptionEngine engine;
+        int                    users;
+
+        SharedEngine(DecryptionEngine engine) {
+            this.engine = engine;
+        }
+
+        void close() {
+            try {
+                engine.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Submits a job to a running {@link DestringerServer} and prints its reply.
+ * <p>
+ * The client authenticates with the secret the daemon has written to
+ * {@link DestringerServer#secretFile(int)}.
+ */
+public class DestringerClient {
+
+    /**
+     * Submits a job with the given command-line arguments, apart from the
+     * option to connect, to the daemon on the given local port.
+     *
+     * @return the exit code, 0 if the job succeeded.
+     */
+    public static int submit(int port, String[] args) {
+        List<String> jobArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--connect")) {
+                i++;
+            } else if (!args[i].startsWith("--connect=")) {
+                jobArgs.add(args[i]);
+            }
+        }
+
+        String secret;
+        try {
+            byte[] secretBytes = Files.readAllBytes(DestringerServer.secretFile(port).toPath());
+            secret = new String(secretBytes, StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            System.err.println("could not read the secret of the daemon on port " + port + ": " + e.getMessage());
+            return 1;
+        }
+
+        try (Socket         socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             Writer         writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+
+            writer.write(secret + "\n");
+            writer.write(new File("").getAbsolutePath() + "\n");
+            writer.write(String.join("\t", jobArgs) + "\n");
+            writer.flush();
+
+            String lastLine = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                System.out.println(line);
+                lastLine = line;
+            }
+
+            return lastLine != null && lastLine.startsWith("OK") ? 0 : 1;
+        } catch (IOException e) {
+            System.err.println("could not submit job to daemon on port " + port + ": " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The command-line options of {@link Destringer}.
+ * <p>
+ * Options can be given either as <code>--option value</code> or
+ * <code>--option=value</code>, followed or preceded by the input and
+ * output jar.
+ */
+public class DestringerOptions {
+
+    private String       inputJarFileName;
+    private String       outputJarFileName;
+    private boolean      batch;
+    private List<String> batchInputFileNames;
+    private String       outputDirectoryName;
+    private int          threads        = 1;
+    private int          workers        = 0;
+    private long         timeout        = Watchdog.DEFAULT_TIMEOUT_SECONDS;
+    private File         cacheDirectory = PersistentResultCache.DEFAULT_DIRECTORY;
+    private Engine       engine         = Engine.LOAD;
+    private boolean      initialize;
+    private long         classBudget;
+    private boolean      stripDecryptors;
+    private int          maxLoadedClasses;
+    private long         metaspaceBudget;
+    private File         reportFile;
+    private String       resultLogFileName;
+    private boolean      quiet;
+    private int          daemonPort;
+    private int          connectPort;
+    private int          jobs           = DestringerServer.DEFAULT_JOBS;
+
+    /**
+     * The available engines to execute decrypt methods.
+     */
+    public enum Engine {
+        LOAD,
+        EMULATE
+    }
+
+    public String getInputJarFileName() {
+        return inputJarFileName;
+    }
+
+    public String getOutputJarFileName() {
+        return outputJarFileName;
+    }
+
+    /**
+     * Returns whether a batch of jars is processed.
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * Returns the jars and directories of jars to process in batch mode.
+     */
+    public List<String> getBatchInputFileNames() {
+        return batchInputFileNames;
+    }
+
+    /**
+     * Returns the directory to write the processed jars to in batch mode.
+     */
+    public String getOutputDirectoryName() {
+        return outputDirectoryName;
+    }
+
+    /**
+     * Returns the number of threads to use for reading the jar and for
+     * decryption, 1 means sequential.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Returns the number of worker processes to execute the decrypt
+     * methods in, 0 means in-process.
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Returns the deadline of a single decryption in seconds, 0 means
+     * no deadline.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Returns the directory of the persistent result cache, or null if
+     * the cache is disabled.
+     */
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns whether the class hierarchy and references of the program
+     * classes are initialized against the library classes.
+     */
+    public boolean isInitialize() {
+        return initialize;
+    }
+
+    /**
+     * Returns the maximum total class file size in bytes of the program
+     * classes kept in memory, 0 means all classes are read up front.
+     */
+    public long getClassBudget() {
+        return classBudget;
+    }
+
+    /**
+     * Returns whether decryptor code that is no longer used after decryption
+     * is removed from the output.
+     */
+    public boolean isStripDecryptors() {
+        return stripDecryptors;
+    }
+
+    /**
+     * Returns the maximum number of classes defined by the class loaders
+     * of lifted decryptors, 0 means unlimited.
+     */
+    public int getMaxLoadedClasses() {
+        return maxLoadedClasses;
+    }
+
+    /**
+     * Returns the maximum total class file size in bytes of the classes
+     * defined by the class loaders of lifted decryptors, 0 means unlimited.
+     */
+    public long getMetaspaceBudget() {
+        return metaspaceBudget;
+    }
+
+    /**
+     * Returns the file to write the JSON report of the run to, or null.
+     */
+    public File getReportFile() {
+        return reportFile;
+    }
+
+    /**
+     * Returns the file to write the NDJSON result log to, "-" for the
+     * standard output, or null for the default.
+     */
+    public String getResultLogFileName() {
+        return resultLogFileName;
+    }
+
+    /**
+     * Returns whether the result log is not written to the standard output
+     * by default.
+     */
+    public boolean isQuiet() {
+        return quiet;
+    }
+
+    /**
+     * Returns the local port to accept jobs on in daemon mode, or 0.
+     */
+    public int getDaemonPort() {
+        return daemonPort;
+    }
+
+    /**
+     * Returns the local port of a daemon to submit the job to, or 0.
+     */
+    public int getConnectPort() {
+        return connectPort;
+    }
+
+    /**
+     * Returns the number of jobs a daemon, or the number of jars a batch,
+     * runs concurrently.
+     */
+    public int getJobs() {
+        return jobs;
+    }
+
+    public static String usage() {
+        return "usage: destringer [options] <input.jar> <output.jar>\n" +
+               "       destringer --batch [options] <input.jar | input-dir>... <output-dir>\n" +
+               "       destringer --daemon PORT [--jobs N] [--cache-dir DIR | --no-cache]\n" +
+               "options:\n" +
+               "  --threads N        number of threads to read the jar and decrypt, shared by a batch (default: 1)\n" +
+               "  --workers N        number of worker processes to run decrypt methods in (default: 0, in-process)\n" +
+               "  --timeout SECONDS  deadline of a single decryption, 0 to disable (default: 10)\n" +
+               "  --cache-dir DIR    directory of the persistent result cache (default: ~/.destringer/cache)\n" +
+               "  --no-cache         disable the persistent result cache\n" +
+               "  --engine ENGINE    engine to execute decrypt methods: load or emulate (default: load)\n" +
+               "  --initialize       initialize class hierarchies and references against the runtime classes\n" +
+               "  --class-budget MB  read program classes on demand, keeping at most MB of class files parsed\n" +
+               "  --strip-decryptors remove decrypt methods, fields and initializers that are no longer used\n" +
+               "  --max-classes N    recycle decryptor class loaders before they define more than N classes\n" +
+               "  --metaspace MB     recycle decryptor class loaders before their class files exceed MB\n" +
+               "  --report FILE      write timings and counters of the run as JSON to the given file\n" +
+               "  --result-log FILE  write each decryption as NDJSON to the given file, - for stdout (default: -)\n" +
+               "  --quiet            do not write the result log to stdout\n" +
+               "  --daemon PORT      run as daemon, accepting jobs on the given local port\n" +
+               "  --batch            process all given jars and directories of jars into an output directory\n" +
+               "  --jobs N           number of jobs the daemon or jars a batch runs concurrently (default: 2)\n" +
+               "  --connect PORT     submit the job to the daemon on the given local port";
+    }
+
+    /**
+     * Parses the given command-line arguments.
+     *
+     * @throws IllegalArgumentException if the arguments are invalid.
+     */
+    public static DestringerOptions parse(String[] args) {
+        DestringerOptions options    = new DestringerOptions();
+        List<String>      positional = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+                continue;
+            }
+
+            String name;
+            String value;
+
+            int separatorIndex = arg.indexOf('=');
+            if (separatorIndex >= 0) {
+                name  = arg.substring(2, separatorIndex);
+                value = arg.substring(separatorIndex + 1);
+            } else {
+                name  = arg.substring(2);
+                value = null;
+            }
+
+            switch (name) {
+                case "threads":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.threads = parseInt(name, value);
+                    if (options.threads < 1) {
+                        throw new IllegalArgumentException("--threads must be at least 1");
+                    }
+                    break;
+
+                case "workers":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.workers = parseInt(name, value);
+                    if (options.workers < 0) {
+                        throw new IllegalArgumentException("--workers must not be negative");
+                    }
+                    break;
+
+                case "timeout":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.timeout = parseInt(name, value);
+                    if (options.timeout < 0) {
+                        throw new IllegalArgumentException("--timeout must not be negative");
+                    }
+                    break;
+
+                case "cache-dir":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.cacheDirectory = new File(value);
+                    break;
+
+                case "no-cache":
+                    options.cacheDirectory = null;
+                    break;
+
+                case "engine":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    try {
+                        options.engine = Engine.valueOf(value.toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("invalid value for --" + name + ": " + value);
+                    }
+                    break;
+
+                case "initialize":
+                    options.initialize = true;
+                    break;
+
+                case "class-budget":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.classBudget = parseInt(name, value) * 1024L * 1024L;
+                    if (options.classBudget < 0) {
+                        throw new IllegalArgumentException("--class-budget must not be negative");
+                    }
+                    break;
+
+                case "strip-decryptors":
+                    options.stripDecryptors = true;
+                    break;
+
+                case "max-classes":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.maxLoadedClasses = parseInt(name, value);
+                    if (options.maxLoadedClasses < 0) {
+                        throw new IllegalArgumentException("--max-classes must not be negative");
+                    }
+                    break;
+
+                case "metaspace":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.metaspaceBudget = parseInt(name, value) * 1024L * 1024L;
+                    if (options.metaspaceBudget < 0) {
+                        throw new IllegalArgumentException("--metaspace must not be negative");
+                    }
+                    break;
+
+                case "report":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.reportFile = new File(value);
+                    break;
+
+                case "result-log":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.resultLogFileName = value;
+                    break;
+
+                case "quiet":
+                    options.quiet = true;
+                    break;
+
+                case "daemon":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.daemonPort = parsePort(name, value);
+                    break;
+
+                case "connect":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.connectPort = parsePort(name, value);
+                    break;
+
+                case "batch":
+                    options.batch = true;
+                    break;
+
+                case "jobs":
+                    if (value == null) {
+                        value = nextValue(args, ++i, name);
+                    }
+                    options.jobs = parseInt(name, value);
+                    if (options.jobs < 1) {
+                        throw new IllegalArgumentException("--jobs must be at least 1");
+                    }
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("unknown option --" + name);
+            }
+        }
+
+        // Initialized classes reference each other, so they could neither
+        // be evicted nor parsed again consistently.
+        if (options.classBudget > 0 && options.initialize) {
+            throw new IllegalArgumentException("--class-budget can not be combined with --initialize");
+        }
+
+        // Jars of a batch may call decryptors of other jars, even after
+        // decryption if some of their call sites could not be decrypted.
+        if (options.batch && options.stripDecryptors) {
+            throw new IllegalArgumentException("--strip-decryptors can not be combined with --batch");
+        }
+
+        if (options.daemonPort > 0) {
+            if (!positional.isEmpty()) {
+                throw new IllegalArgumentException("no input or output jar expected in daemon mode");
+            }
+            return options;
+        }
+
+        if (options.batch) {
+            if (positional.size() < 2) {
+                throw new IllegalArgumentException("expected at least one input and an output directory");
+            }
+            options.batchInputFileNames = new ArrayList<>(positional.subList(0, positional.size() - 1));
+            options.outputDirectoryName = positional.get(positional.size() - 1);
+            return options;
+        }
+
+        if (positional.size() != 2) {
+            throw new IllegalArgumentException("expected an input and an output jar");
+        }
+
+        options.inputJarFileName  = positional.get(0);
+        options.outputJarFileName = positional.get(1);
+
+        return options;
+    }
+
+    private static String nextValue(String[] args, int index, String name) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("missing value for --" + name);
+        }
+        return args[index];
+    }
+
+    private static int parsePort(String name, String value) {
+        int port = parseInt(name, value);
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("invalid port for --" + name + ": " + value);
+        }
+        return port;
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid value for --" + name + ": " + value);
+        }
+    }
+}
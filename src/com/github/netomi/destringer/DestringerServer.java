@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-running daemon that accepts decryption jobs on a local port,
+ * keeping the JVM, the result cache and the decryption engines warm
+ * between jobs.
+ * <p>
+ * Each connection submits a single job as three lines of UTF-8 text: the
+ * secret of the daemon, the working directory of the client, followed by
+ * the command-line options of the job separated by tab characters. The daemon replies with the
+ * JSON report of the job, followed by a line <code>OK &lt;millis&gt;</code>
+ * or <code>ERROR &lt;message&gt;</code>.
+ * <p>
+ * Engines are shared between jobs on the same, unmodified input jar with
+ * the same engine options, the library classes are shared by all jobs.
+ * <p>
+ * As the port is open to all local users, the daemon generates a random
+ * secret at startup and writes it to a file that only the current user can
+ * read, see {@link #secretFile(int)}. Connections that do not present the
+ * secret are rejected.
+ */
+public class DestringerServer {
+
+    public static final int DEFAULT_JOBS = 2;
+
+    // The directory containing the secret files of running daemons.
+    public static final File SECRET_DIRECTORY = new File(System.getProperty("user.home"), ".destringer");
+
+    // The maximum number of idle engines that are kept for later jobs.
+    private static final int MAX_CACHED_ENGINES = 16;
+
+    // The time a client has to present the secret.
+    private static final int AUTHENTICATION_TIMEOUT_MILLIS = 10_000;
+
+    private final int                       port;
+    private final int                       jobs;
+    private final PersistentResultCache     resultCache;
+    private final Map<String, SharedEngine> engines = new LinkedHashMap<>();
+    private       LazyLibraryClassPool      libraryClassPool;
+    private       byte[]                    secret;
+
+    /**
+     * Creates a new DestringerServer.
+     *
+     * @param port        the local port to accept jobs on.
+     * @param jobs        the number of jobs to run concurrently.
+     * @param resultCache an optional persistent cache shared by all jobs.
+     */
+    public DestringerServer(int port, int jobs, PersistentResultCache resultCache) {
+        this.port        = port;
+        this.jobs        = jobs;
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Accepts and runs jobs until the process is terminated.
+     */
+    public void run() throws IOException {
+        ExecutorService executor   = Executors.newFixedThreadPool(jobs);
+        Path            secretFile = secretFile(port).toPath();
+
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            secret = writeSecret(secretFile);
+
+            System.out.println("destringer daemon listening on " + serverSocket.getLocalSocketAddress());
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> handle(socket));
+            }
+        } finally {
+            executor.shutdownNow();
+            Files.deleteIfExists(secretFile);
+            closeEngines();
+            closeLibraryClassPool();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket         s      = socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer         writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+
+            s.setSoTimeout(AUTHENTICATION_TIMEOUT_MILLIS);
+
+            String clientSecret = reader.readLine();
+            if (clientSecret == null ||
+                !MessageDigest.isEqual(secret, clientSecret.getBytes(StandardCharsets.UTF_8))) {
+                System.err.println("rejected connection from " + s.getRemoteSocketAddress() + ": invalid secret");
+                writer.write("ERROR invalid secret\n");
+                return;
+            }
+
+            s.setSoTimeout(0);
+
+            String workingDirectory = reader.readLine();
+            String argumentLine     = reader.readLine();
+            if (workingDirectory == null || argumentLine == null) {
+                return;
+            }
+
+            long startTime = System.nanoTime();
+
+            try {
+                String[] args = argumentLine.isEmpty() ? new String[0] : argumentLine.split("\t");
+
+                Metrics metrics = runJob(new File(workingDirectory), DestringerOptions.parse(args));
+
+                metrics.writeReport(writer);
+                writer.write("OK " + (System.nanoTime() - startTime) / 1_000_000 + "\n");
+            } catch (Exception e) {
+                e.printStackTrace();
+                writer.write("ERROR " + e + "\n");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Metrics runJob(File workingDirectory, DestringerOptions options) throws Exception {
+        if (options.getDaemonPort() > 0 || options.getConnectPort() > 0) {
+            throw new IllegalArgumentException("jobs can not start or connect to a daemon");
+        }
+        if (options.isBatch()) {
+            throw new IllegalArgumentException("batch mode is not supported by the daemon");
+        }
+
+        File inputJar  = resolve(workingDirectory, options.getInputJarFileName());
+        File outputJar = resolve(workingDirectory, options.getOutputJarFileName());
+
+        if (!inputJar.isFile()) {
+            throw new FileNotFoundException(inputJar.getPath());
+        }
+
+        // The output of the daemon is not seen by the client, only log to a file.
+        String resultLogFileName = options.getResultLogFileName();
+        if ("-".equals(resultLogFileName)) {
+            throw new IllegalArgumentException("the daemon can only write the result log to a file");
+        }
+
+        SharedEngine engine = acquireEngine(options, inputJar);
+
+        Metrics metrics;
+        try (ResultLog resultLog = resultLogFileName != null ?
+                 ResultLog.open(resolve(workingDirectory, resultLogFileName)) :
+                 null)
+        {
+            metrics = new Metrics(resultLog != null);
+
+            Destringer.decryptJar(inputJar,
+                                  outputJar,
+                                  options,
+                                  options.isInitialize() ? libraryClassPool() : null,
+                                  new StringDecryptor(engine.engine, options.getThreads(), resultCache, resultLog, metrics),
+                                  metrics);
+        } finally {
+            releaseEngine(engine);
+        }
+
+        if (resultCache != null) {
+            resultCache.flush();
+        }
+
+        if (options.getReportFile() != null) {
+            metrics.writeReport(resolve(workingDirectory, options.getReportFile().getPath()));
+        }
+
+        return metrics;
+    }
+
+    /**
+     * Returns the file containing the secret of the daemon on the given port.
+     */
+    public static File secretFile(int port) {
+        return new File(SECRET_DIRECTORY, "daemon-" + port + ".secret");
+    }
+
+    /**
+     * Generates a new secret and writes it to the given file, readable and
+     * writable only by the current user.
+     */
+    private static byte[] writeSecret(Path secretFile) throws IOException {
+        byte[] randomBytes = new byte[32];
+        new SecureRandom().nextBytes(randomBytes);
+
+        byte[] secret = Base64.getUrlEncoder().withoutPadding().encodeToString(randomBytes)
+                              .getBytes(StandardCharsets.UTF_8);
+
+        Files.createDirectories(secretFile.getParent());
+        Files.deleteIfExists(secretFile);
+
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-------");
+            Files.createFile(secretFile, PosixFilePermissions.asFileAttribute(permissions));
+        } else {
+            File file = Files.createFile(secretFile).toFile();
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        }
+
+        Files.write(secretFile, secret, StandardOpenOption.TRUNCATE_EXISTING);
+
+        return secret;
+    }
+
+    private static File resolve(File workingDirectory, String fileName) {
+        File file = new File(fileName);
+        return file.isAbsolute() ? file : new File(workingDirectory, fileName);
+    }
+
+    /**
+     * Returns an engine for the given input jar, reusing the engine of a
+     * previous job if possible.
+     */
+    private synchronized SharedEngine acquireEngine(DestringerOptions options, File inputJar) throws IOException {
+        String key = inputJar.getCanonicalPath()     + '\u0000' +
+                     inputJar.length()             + '\u0000' +
+                     inputJar.lastModified()       + '\u0000' +
+                     options.getEngine()           + '\u0000' +
+                     options.getWorkers()          + '\u0000' +
+                     options.getTimeout()          + '\u0000' +
+                     options.getMaxLoadedClasses() + '\u0000' +
+                     options.getMetaspaceBudget();
+
+        SharedEngine engine = engines.remove(key);
+        if (engine == null) {
+            engine = new SharedEngine(Destringer.createEngine(options, inputJar));
+        }
+
+        // Re-insert the engine to mark it as most recently used.
+        engines.put(key, engine);
+        engine.users++;
+
+        return engine;
+    }
+
+    private synchronized void releaseEngine(SharedEngine engine) {
+        engine.users--;
+
+        // Close the least recently used idle engines beyond the limit.
+        Iterator<SharedEngine> iterator = engines.values().iterator();
+        while (engines.size() > MAX_CACHED_ENGINES && iterator.hasNext()) {
+            SharedEngine cachedEngine = iterator.next();
+            if (cachedEngine.users == 0) {
+                iterator.remove();
+                cachedEngine.close();
+            }
+        }
+    }
+
+    private synchronized LazyLibraryClassPool libraryClassPool() throws IOException {
+        if (libraryClassPool == null) {
+            libraryClassPool = Destringer.loadLibraryClassPool();
+        }
+        return libraryClassPool;
+    }
+
+    private synchronized void closeLibraryClassPool() throws IOException {
+        if (libraryClassPool != null) {
+            libraryClassPool.close();
+            libraryClassPool = null;
+        }
+    }
+
+    private synchronized void closeEngines() {
+        for (SharedEngine engine : engines.values()) {
+            engine.close();
+        }
+        engines.clear();
+    }
+
+    /**
+     * An engine together with the number of jobs using it.
+     */
+    private static class SharedEngine {
+        final DecryptionEngine engine;
+        int                    users;
+
+        SharedEngine(DecryptionEngine engine) {
+            this.engine = engine;
+        }
+
+        void close() {
+            try {
+                engine.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ProgramClass;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A decryption engine that interprets the decrypt methods using a
+ * {@link DecryptorEmulator}, without loading any code.
+ * <p>
+ * Decryptor classes that use unsupported features are handed over
+ * to a fallback engine.
+ */
+public class EmulatingEngine
+    implements DecryptionEngine {
+
+    private final DecryptionEngine               fallbackEngine;
+    private final Map<String, DecryptorEmulator> emulators             = new ConcurrentHashMap<>();
+    private final Set<String>                    unsupportedDecryptors = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    public EmulatingEngine(DecryptionEngine fallbackEngine) {
+        this.fallbackEngine = fallbackEngine;
+    }
+
+    @Override
+    public void decrypt(ProgramClass                   decryptorClass,
+                        Collection<DecryptionRequest>  requests,
+                        Map<DecryptionRequest, String> results,
+                        Metrics                        metrics) throws Exception {
+
+        String                  className        = decryptorClass.getName();
+        List<DecryptionRequest> fallbackRequests = new ArrayList<>();
+
+        DecryptorEmulator emulator =
+            emulators.computeIfAbsent(className, name -> new DecryptorEmulator(decryptorClass));
+
+        for (DecryptionRequest request : requests) {
+            if (unsupportedDecryptors.contains(className)) {
+                fallbackRequests.add(request);
+                continue;
+            }
+
+            Object    event     = metrics.beginDecryption();
+            long      startTime = System.nanoTime();
+            Throwable failure   = null;
+
+            try {
+                String result = emulator.decrypt(request.getMethodName(),
+                                                 request.getArgument(),
+                                                 request.getCallerClassName(),
+                                                 request.getCallerMethodName(),
+                                                 request.getConstantPoolSize());
+                if (result != null) {
+                    results.put(request, result);
+                }
+            } catch (DecryptorEmulator.EmulationException e) {
+                System.err.println("cannot emulate decryptor " + className + ": " + e.getMessage());
+
+                // Do not try to emulate this decryptor anymore.
+                unsupportedDecryptors.add(className);
+                emulators.remove(className);
+                fallbackRequests.add(request);
+                continue;
+            } catch (Exception e) {
+                failure = e;
+                e.printStackTrace();
+            }
+
+            metrics.endDecryption(event, request, startTime, failure);
+        }
+
+        if (!fallbackRequests.isEmpty()) {
+            fallbackEngine.decrypt(decryptorClass, fallbackRequests, results, metrics);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        fallbackEngine.close();
+    }
+}
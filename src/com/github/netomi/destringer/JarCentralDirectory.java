@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * The central directory of a jar, as read directly from the file.
+ * <p>
+ * Jars in zip64 format, either as a whole or for individual entries, are
+ * not supported: {@link #read} returns null for them, so callers can fall
+ * back to the regular zip classes.
+ */
+class JarCentralDirectory {
+
+    static final int LOCAL_HEADER_SIGNATURE       = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE     = 0x02014b50;
+    static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+    static final int DATA_DESCRIPTOR_SIGNATURE    = 0x08074b50;
+
+    static final int LOCAL_HEADER_SIZE       = 30;
+    static final int CENTRAL_HEADER_SIZE     = 46;
+    static final int END_OF_CENTRAL_DIR_SIZE = 22;
+    static final int MAX_COMMENT_SIZE        = 0xffff;
+
+    static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    static final int FLAG_UTF8            = 0x0800;
+
+    static final int METHOD_STORED   = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    // The values of 16-bit and 32-bit fields that are stored in a zip64 extra field instead.
+    private static final int  ZIP64_SHORT = 0xffff;
+    private static final long ZIP64_INT   = 0xffffffffL;
+
+    /**
+     * The raw bytes of the central directory headers.
+     */
+    final byte[]      bytes;
+
+    /**
+     * The comment at the end of the jar.
+     */
+    final byte[]      comment;
+
+    final List<Entry> entries;
+
+    private JarCentralDirectory(byte[] bytes, byte[] comment, List<Entry> entries) {
+        this.bytes   = bytes;
+        this.comment = comment;
+        this.entries = entries;
+    }
+
+    /**
+     * Reads the central directory of the given jar, or returns null if the
+     * jar or any of its entries is in zip64 format.
+     */
+    static JarCentralDirectory read(File jarFile, FileChannel channel) throws IOException {
+        long fileLength = channel.size();
+        int  tailLength = (int) Math.min(fileLength, END_OF_CENTRAL_DIR_SIZE + MAX_COMMENT_SIZE);
+
+        byte[] tail = readFully(channel, fileLength - tailLength, tailLength);
+
+        for (int offset = tailLength - END_OF_CENTRAL_DIR_SIZE; offset >= 0; offset--) {
+            if (readInt(tail, offset) != END_OF_CENTRAL_DIR_SIGNATURE ||
+                offset + END_OF_CENTRAL_DIR_SIZE + readShort(tail, offset + 20) != tailLength) {
+                continue;
+            }
+
+            int  entryCount             = readShort(tail, offset + 10);
+            long centralDirectorySize   = readUnsignedInt(tail, offset + 12);
+            long centralDirectoryOffset = readUnsignedInt(tail, offset + 16);
+
+            if (entryCount             == ZIP64_SHORT ||
+                centralDirectorySize   == ZIP64_INT   ||
+                centralDirectoryOffset == ZIP64_INT) {
+                return null;
+            }
+
+            if (centralDirectoryOffset + centralDirectorySize > fileLength - tailLength + offset) {
+                throw new ZipException("invalid central directory size in " + jarFile);
+            }
+
+            byte[] bytes   = readFully(channel, centralDirectoryOffset, (int) centralDirectorySize);
+            byte[] comment = Arrays.copyOfRange(tail, offset + END_OF_CENTRAL_DIR_SIZE, tailLength);
+
+            List<Entry> entries = readEntries(jarFile, bytes, entryCount);
+            return entries != null ?
+                new JarCentralDirectory(bytes, comment, entries) :
+                null;
+        }
+
+        throw new ZipException("no end of central directory found in " + jarFile);
+    }
+
+    /**
+     * Parses the given central directory headers, or returns null if any
+     * of them refers to a zip64 extra field.
+     */
+    private static List<Entry> readEntries(File jarFile, byte[] bytes, int entryCount) throws IOException {
+        List<Entry> entries = new ArrayList<>(entryCount);
+
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (offset + CENTRAL_HEADER_SIZE > bytes.length ||
+                readInt(bytes, offset) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("invalid central directory header in " + jarFile);
+            }
+
+            int nameLength    = readShort(bytes, offset + 28);
+            int extraLength   = readShort(bytes, offset + 30);
+            int commentLength = readShort(bytes, offset + 32);
+            int headerLength  = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+            if (offset + headerLength > bytes.length) {
+                throw new ZipException("invalid central directory header in " + jarFile);
+            }
+
+            long compressedSize    = readUnsignedInt(bytes, offset + 20);
+            long size              = readUnsignedInt(bytes, offset + 24);
+            int  diskNumber        = readShort(bytes, offset + 34);
+            long localHeaderOffset = readUnsignedInt(bytes, offset + 42);
+
+            if (compressedSize    == ZIP64_INT   ||
+                size              == ZIP64_INT   ||
+                diskNumber        == ZIP64_SHORT ||
+                localHeaderOffset == ZIP64_INT) {
+                return null;
+            }
+
+            entries.add(new Entry(new String(bytes, offset + CENTRAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8),
+                                  offset,
+                                  headerLength,
+                                  readShort(bytes, offset + 8),
+                                  readShort(bytes, offset + 10),
+                                  readInt(bytes, offset + 12),
+                                  compressedSize,
+                                  size,
+                                  readInt(bytes, offset + 38),
+                                  localHeaderOffset));
+
+            offset += headerLength;
+        }
+
+        if (entries.size() != entryCount) {
+            throw new ZipException("invalid central directory entry count in " + jarFile);
+        }
+        return entries;
+    }
+
+    private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("unexpected end of file at offset " + (position + buffer.position()));
+            }
+        }
+        return buffer.array();
+    }
+
+    static int readShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    static int readInt(byte[] bytes, int offset) {
+        return readShort(bytes, offset) | readShort(bytes, offset + 2) << 16;
+    }
+
+    static long readUnsignedInt(byte[] bytes, int offset) {
+        return readInt(bytes, offset) & 0xffffffffL;
+    }
+
+    static void writeShort(byte[] bytes, int offset, int value) {
+        bytes[offset]     = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+    }
+
+    static void writeInt(byte[] bytes, int offset, long value) {
+        writeShort(bytes, offset,     (int) value);
+        writeShort(bytes, offset + 2, (int) (value >>> 16));
+    }
+
+    /**
+     * An entry of the central directory.
+     */
+    static class Entry {
+        final String name;
+        final int    headerOffset;
+        final int    headerLength;
+        final int    flags;
+        final int    method;
+        final int    dosTime;
+        final long   compressedSize;
+        final long   size;
+        final int    externalAttributes;
+        final long   localHeaderOffset;
+
+        Entry(String name,
+              int    headerOffset,
+              int    headerLength,
+              int    flags,
+              int    method,
+              int    dosTime,
+              long   compressedSize,
+              long   size,
+              int    externalAttributes,
+              long   localHeaderOffset) {
+            this.name               = name;
+            this.headerOffset       = headerOffset;
+            this.headerLength       = headerLength;
+            this.flags              = flags;
+            this.method             = method;
+            this.dosTime            = dosTime;
+            this.compressedSize     = compressedSize;
+            this.size               = size;
+            this.externalAttributes = externalAttributes;
+            this.localHeaderOffset  = localHeaderOffset;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The classes and resources of an input jar, opened once and shared by
+ * all {@link DecryptorClassLoader}s of the jar.
+ */
+public class JarResourceIndex
+    implements Closeable {
+
+    private final ZipFile    jarFile;
+    private final URL        jarURL;
+    private final CodeSource codeSource;
+
+    public JarResourceIndex(File inputJar) throws IOException {
+        this.jarFile    = new ZipFile(inputJar);
+        this.jarURL     = inputJar.toURI().toURL();
+        this.codeSource = new CodeSource(jarURL, (CodeSigner[]) null);
+    }
+
+    /**
+     * Returns the code source of the classes defined from the jar.
+     */
+    public CodeSource getCodeSource() {
+        return codeSource;
+    }
+
+    /**
+     * Returns the contents of the given entry, or null if the jar does not
+     * contain it.
+     */
+    public byte[] getBytes(String entryName) throws IOException {
+        ZipEntry entry = jarFile.getEntry(entryName);
+        if (entry == null || entry.isDirectory()) {
+            return null;
+        }
+
+        try (InputStream inputStream = jarFile.getInputStream(entry)) {
+            ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 1024);
+
+            byte[] buffer = new byte[8192];
+            int    count;
+            while ((count = inputStream.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Returns a URL of the given entry, or null if the jar does not
+     * contain it.
+     */
+    public URL getResource(String entryName) {
+        if (jarFile.getEntry(entryName) == null) {
+            return null;
+        }
+
+        try {
+            return new URL("jar:" + jarURL + "!/" + entryName);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        jarFile.close();
+    }
+}
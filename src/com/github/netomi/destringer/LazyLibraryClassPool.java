@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ClassPool;
+import proguard.classfile.Clazz;
+import proguard.classfile.LibraryClass;
+import proguard.classfile.io.LibraryClassReader;
+import proguard.classfile.util.ClassSuperHierarchyInitializer;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A library class pool that reads the classes of the Java runtime on
+ * demand, when they are first looked up, instead of parsing all of them
+ * up front.
+ * <p>
+ * Classes are read through the <code>jrt:/</code> file system on Java 9+
+ * and from <code>rt.jar</code> otherwise. Each class is parsed once, its
+ * super class hierarchy is initialized right away, and classes that do
+ * not exist are remembered as well. Lookups are thread-safe, so the pool
+ * can be shared between concurrent jobs, and classes are parsed outside
+ * of the lock.
+ */
+public class LazyLibraryClassPool
+    extends    ClassPool
+    implements Closeable {
+
+    private static final String CLASS_FILE_EXTENSION = ".class";
+
+    private final FileSystem                jrtFileSystem;
+    private final ZipFile                   runtimeJar;
+    private final Map<String, List<String>> modulesByPackage = new ConcurrentHashMap<>();
+    private final Set<String>               missingClasses   = ConcurrentHashMap.newKeySet();
+    private final ClassPool                 emptyClassPool   = new ClassPool();
+
+    private LazyLibraryClassPool(FileSystem jrtFileSystem, ZipFile runtimeJar) {
+        this.jrtFileSystem = jrtFileSystem;
+        this.runtimeJar    = runtimeJar;
+    }
+
+    /**
+     * Returns a library class pool for the classes of the running JVM.
+     */
+    public static LazyLibraryClassPool forCurrentRuntime() throws IOException {
+        try {
+            return new LazyLibraryClassPool(FileSystems.getFileSystem(URI.create("jrt:/")), null);
+        } catch (ProviderNotFoundException | FileSystemNotFoundException e) {
+            // Java 8 and earlier, the runtime classes are in rt.jar.
+            String javaHome = System.getProperty("java.home");
+
+            File runtimeJar = new File(javaHome, "lib/rt.jar");
+            if (!runtimeJar.isFile()) {
+                runtimeJar = new File(javaHome, "jre/lib/rt.jar");
+            }
+
+            return new LazyLibraryClassPool(null, new ZipFile(runtimeJar));
+        }
+    }
+
+    @Override
+    public Clazz getClass(String className) {
+        synchronized (this) {
+            Clazz clazz = super.getClass(className);
+            if (clazz != null || missingClasses.contains(className)) {
+                return clazz;
+            }
+        }
+
+        LibraryClass libraryClass;
+        try (InputStream inputStream = openClass(className)) {
+            if (inputStream == null) {
+                missingClasses.add(className);
+                return null;
+            }
+
+            libraryClass = new LibraryClass();
+            libraryClass.accept(new LibraryClassReader(new DataInputStream(new BufferedInputStream(inputStream)), false, false));
+        } catch (IOException e) {
+            missingClasses.add(className);
+            return null;
+        }
+
+        // Library classes can only extend other library classes, which are
+        // looked up recursively, so initialize the class before publishing it.
+        libraryClass.accept(new ClassSuperHierarchyInitializer(emptyClassPool, this, null, null));
+
+        synchronized (this) {
+            // Another thread may have parsed the class in the meantime.
+            Clazz clazz = super.getClass(className);
+            if (clazz != null) {
+                return clazz;
+            }
+
+            addClass(libraryClass);
+            return libraryClass;
+        }
+    }
+
+    /**
+     * Returns a stream of the class file of the given class, or null if
+     * the runtime does not contain it.
+     */
+    private InputStream openClass(String className) throws IOException {
+        String fileName = className + CLASS_FILE_EXTENSION;
+
+        if (runtimeJar != null) {
+            ZipEntry entry = runtimeJar.getEntry(fileName);
+            return entry != null ? runtimeJar.getInputStream(entry) : null;
+        }
+
+        for (String module : modules(className)) {
+            Path path = jrtFileSystem.getPath("/modules", module, fileName);
+            if (Files.isRegularFile(path)) {
+                return Files.newInputStream(path);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the names of the modules that contain the package of the
+     * given class.
+     */
+    private List<String> modules(String className) throws IOException {
+        int    packageEnd  = className.lastIndexOf('/');
+        String packageName = packageEnd < 0 ? "" : className.substring(0, packageEnd).replace('/', '.');
+
+        List<String> modules = modulesByPackage.get(packageName);
+        if (modules == null) {
+            modules = new ArrayList<>();
+
+            Path packageDirectory = jrtFileSystem.getPath("/packages", packageName);
+            if (!packageName.isEmpty() && Files.isDirectory(packageDirectory)) {
+                try (DirectoryStream<Path> moduleLinks = Files.newDirectoryStream(packageDirectory)) {
+                    for (Path moduleLink : moduleLinks) {
+                        modules.add(moduleLink.getFileName().toString());
+                    }
+                }
+            }
+
+            modulesByPackage.put(packageName, modules);
+        }
+        return modules;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (runtimeJar != null) {
+            runtimeJar.close();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ClassConstants;
+import proguard.classfile.ClassPool;
+import proguard.classfile.Clazz;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.io.ProgramClassReader;
+import proguard.classfile.visitor.ClassVisitor;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A program class pool that parses the classes of one or more jars on
+ * first access instead of reading all of them up front.
+ * <p>
+ * Only the central directories of the jars are read when the pool is
+ * created, a class that is contained in several jars is taken from the
+ * first one.
+ * Parsed classes stay in the pool until their total class file size
+ * exceeds the given budget, then the least recently used ones are evicted
+ * and read again from the jar when needed. Classes that are added to the
+ * pool are considered modified: they are serialized right away and never
+ * evicted, so that the output jar can be written from their class files.
+ * <p>
+ * {@link #classNames()}, {@link #size()} and {@link #classesAccept(ClassVisitor)}
+ * cover all classes of the jar. Lookups are thread-safe, classes are
+ * parsed outside of the lock.
+ */
+public class LazyProgramClassPool
+    extends    ClassPool
+    implements Closeable {
+
+    private final List<ZipFile>        jarFiles        = new ArrayList<>();
+    private final long                 budget;
+    private final Map<String, ZipFile> classJarFiles   = new LinkedHashMap<>();
+    private final Map<String, Long>    residentClasses = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, byte[]>  modifiedClasses = new HashMap<>();
+    private       long                 residentSize;
+
+    /**
+     * Creates a new LazyProgramClassPool.
+     *
+     * @param inputJar the jar to read the classes from.
+     * @param budget   the maximum total class file size in bytes of the
+     *                 parsed classes that are kept in the pool.
+     */
+    public LazyProgramClassPool(File inputJar, long budget) throws IOException {
+        this(Collections.singletonList(inputJar), budget);
+    }
+
+    /**
+     * Creates a new LazyProgramClassPool.
+     *
+     * @param inputJars the jars to read the classes from.
+     * @param budget    the maximum total class file size in bytes of the
+     *                  parsed classes that are kept in the pool.
+     */
+    public LazyProgramClassPool(List<File> inputJars, long budget) throws IOException {
+        this.budget = budget;
+
+        try {
+            for (File inputJar : inputJars) {
+                ZipFile jarFile = new ZipFile(inputJar);
+                jarFiles.add(jarFile);
+
+                Enumeration<? extends ZipEntry> entries = jarFile.entries();
+                while (entries.hasMoreElements()) {
+                    String entryName = entries.nextElement().getName();
+
+                    // Versioned classes would clash with their base versions.
+                    if (entryName.endsWith(ClassConstants.CLASS_FILE_EXTENSION) &&
+                        !entryName.startsWith("META-INF/")) {
+                        String className =
+                            entryName.substring(0, entryName.length() - ClassConstants.CLASS_FILE_EXTENSION.length());
+
+                        classJarFiles.putIfAbsent(className, jarFile);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Clazz getClass(String className) {
+        byte[] classBytes;
+
+        synchronized (this) {
+            Clazz clazz = super.getClass(className);
+            if (clazz != null) {
+                // Mark the class as recently used.
+                residentClasses.get(className);
+                return clazz;
+            }
+
+            if (!classJarFiles.containsKey(className) && !modifiedClasses.containsKey(className)) {
+                return null;
+            }
+
+            classBytes = modifiedClasses.get(className);
+        }
+
+        try {
+            if (classBytes == null) {
+                classBytes = readClass(className);
+            }
+
+            ProgramClass programClass = new ProgramClass();
+            programClass.accept(new ProgramClassReader(new DataInputStream(new ByteArrayInputStream(classBytes))));
+
+            synchronized (this) {
+                // Another thread may have parsed the class in the meantime.
+                Clazz clazz = super.getClass(className);
+                if (clazz != null) {
+                    return clazz;
+                }
+
+                super.addClass(programClass);
+
+                if (!modifiedClasses.containsKey(className)) {
+                    residentClasses.put(className, (long) classBytes.length);
+                    residentSize += classBytes.length;
+                    evict();
+                }
+
+                return programClass;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to read class " + className, e);
+        }
+    }
+
+    /**
+     * Adds the given class as a modified class, it is serialized and will
+     * not be evicted anymore.
+     */
+    @Override
+    public void addClass(Clazz clazz) {
+        try {
+            byte[] classBytes = CodeLifter.toByteArray((ProgramClass) clazz);
+
+            synchronized (this) {
+                String className = clazz.getName();
+
+                Long size = residentClasses.remove(className);
+                if (size != null) {
+                    residentSize -= size;
+                }
+
+                super.removeClass(className);
+                modifiedClasses.put(className, classBytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to write class " + clazz.getName(), e);
+        }
+    }
+
+    /**
+     * Returns the class file of the given modified class, or null if the
+     * class has not been modified.
+     */
+    public synchronized byte[] getModifiedClassBytes(String className) {
+        return modifiedClasses.get(className);
+    }
+
+    @Override
+    public synchronized Iterator<String> classNames() {
+        List<String> allClassNames = new ArrayList<>(classJarFiles.keySet());
+        for (String className : modifiedClasses.keySet()) {
+            if (!classJarFiles.containsKey(className)) {
+                allClassNames.add(className);
+            }
+        }
+        return allClassNames.iterator();
+    }
+
+    @Override
+    public synchronized int size() {
+        int size = classJarFiles.size();
+        for (String className : modifiedClasses.keySet()) {
+            if (!classJarFiles.containsKey(className)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void classesAccept(ClassVisitor classVisitor) {
+        Iterator<String> iterator = classNames();
+        while (iterator.hasNext()) {
+            Clazz clazz = getClass(iterator.next());
+            if (clazz != null) {
+                clazz.accept(classVisitor);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ZipFile jarFile : jarFiles) {
+            jarFile.close();
+        }
+    }
+
+    private byte[] readClass(String className) throws IOException {
+        ZipFile  jarFile = classJarFiles.get(className);
+        ZipEntry entry   = jarFile.getEntry(className + ClassConstants.CLASS_FILE_EXTENSION);
+
+        try (InputStream input = jarFile.getInputStream(entry)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(0, (int) entry.getSize()));
+
+            byte[] buffer = new byte[8 * 1024];
+            int    count;
+            while ((count = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Removes the least recently used classes from the pool until the
+     * parsed classes fit into the budget again.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = residentClasses.entrySet().iterator();
+        while (residentSize > budget && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+
+            super.removeClass(entry.getKey());
+            residentSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ProgramClass;
+import proguard.classfile.util.ClassUtil;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A decryptor class that has been lifted, defined and initialized once and
+ * can be invoked for any call site by passing the respective caller context.
+ */
+public class LiftedDecryptor
+    implements Closeable {
+
+    private final Class<?>     decryptorClass;
+    private final MethodHandle callerClassNameSetter;
+    private final MethodHandle callerMethodNameSetter;
+    private final MethodHandle constantPoolSizeSetter;
+
+    // The invokers of the decrypt methods, guarded by the lock of this decryptor.
+    private final Map<String, DecryptInvoker> invokers = new HashMap<>();
+
+    private LiftedDecryptor(Class<?> decryptorClass) throws ReflectiveOperationException {
+        this.decryptorClass = decryptorClass;
+
+        callerClassNameSetter  = staticSetter(decryptorClass, CodeLifter.CALLER_CLASS_NAME_FIELD);
+        callerMethodNameSetter = staticSetter(decryptorClass, CodeLifter.CALLER_METHOD_NAME_FIELD);
+        constantPoolSizeSetter = staticSetter(decryptorClass, CodeLifter.CONSTANT_POOL_SIZE_FIELD);
+    }
+
+    private static MethodHandle staticSetter(Class<?> clazz, String fieldName) throws ReflectiveOperationException {
+        // The decryptor class itself is not necessarily accessible.
+        Field field = clazz.getDeclaredField(fieldName);
+        field.setAccessible(true);
+
+        return MethodHandles.lookup().unreflectSetter(field);
+    }
+
+    /**
+     * Lifts the given decryptor class and loads it.
+     */
+    public static LiftedDecryptor lift(ProgramClass originalClass, JarResourceIndex resources) throws Exception {
+        return lift(originalClass, resources, new Metrics());
+    }
+
+    /**
+     * Lifts the given decryptor class and loads it, recording the time
+     * spent in the given metrics.
+     */
+    public static LiftedDecryptor lift(ProgramClass originalClass, JarResourceIndex resources, Metrics metrics) throws Exception {
+        ProgramClass liftedClass = CodeLifter.liftClass(originalClass, metrics);
+
+        long startTime = System.nanoTime();
+
+        LiftedDecryptor decryptor =
+            load(ClassUtil.externalClassName(originalClass.getName()),
+                 CodeLifter.toByteArray(liftedClass),
+                 resources);
+
+        metrics.record(Metrics.Phase.CLASS_DEFINITION, startTime);
+
+        return decryptor;
+    }
+
+    /**
+     * Loads an already lifted decryptor class from the given bytes.
+     */
+    public static LiftedDecryptor load(String externalClassName, byte[] bytes, JarResourceIndex resources) throws Exception {
+        Class<?> decryptorClass = CodeLifter.loadClass(externalClassName, bytes, resources);
+
+        return new LiftedDecryptor(decryptorClass);
+    }
+
+    public Class<?> getDecryptorClass() {
+        return decryptorClass;
+    }
+
+    public DecryptorClassLoader getClassLoader() {
+        return (DecryptorClassLoader) decryptorClass.getClassLoader();
+    }
+
+    /**
+     * Closes the class loader of the decryptor, see
+     * {@link DecryptorClassLoader#close()}.
+     */
+    @Override
+    public void close() {
+        getClassLoader().close();
+    }
+
+    /**
+     * Invokes the given decrypt method with the given caller context.
+     * <p>
+     * Invocations are serialized per decryptor, as the caller context is
+     * passed in static fields of the lifted class.
+     */
+    public synchronized String decrypt(String methodName,
+                                       Object argument,
+                                       String callerClassName,
+                                       String callerMethodName,
+                                       int    constantPoolSize) throws Exception {
+        try {
+            callerClassNameSetter.invokeExact(callerClassName);
+            callerMethodNameSetter.invokeExact(callerMethodName);
+            constantPoolSizeSetter.invokeExact(constantPoolSize);
+
+            DecryptInvoker invoker = invokers.get(methodName);
+            if (invoker == null) {
+                invoker = DecryptInvoker.of(decryptorClass, methodName);
+                invokers.put(methodName, invoker);
+            }
+
+            return invoker.invoke(argument);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Decrypts all given requests in one pass and puts the decrypted strings
+     * into the given result map.
+     * <p>
+     * Failing requests are reported and skipped, each invocation is
+     * recorded in the given metrics.
+     */
+    public synchronized void decryptAll(Collection<DecryptionRequest>  requests,
+                                        Map<DecryptionRequest, String> results,
+                                        Metrics                        metrics) {
+        for (DecryptionRequest request : requests) {
+            Object    event     = metrics.beginDecryption();
+            long      startTime = System.nanoTime();
+            Throwable failure   = null;
+
+            try {
+                String result = decrypt(request.getMethodName(),
+                                        request.getArgument(),
+                                        request.getCallerClassName(),
+                                        request.getCallerMethodName(),
+                                        request.getConstantPoolSize());
+
+                if (result != null) {
+                    results.put(request, result);
+                }
+            } catch (Exception e) {
+                failure = e;
+                e.printStackTrace();
+            }
+
+            metrics.endDecryption(event, request, startTime, failure);
+        }
+    }
+}
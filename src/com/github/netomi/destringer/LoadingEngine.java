@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ProgramClass;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A decryption engine that lifts decryptor classes, loads them into the
+ * current JVM and invokes their decrypt methods.
+ * <p>
+ * If a {@link Watchdog} is given, a decryptor that gets stuck in a request
+ * is discarded together with its class loader, the request is left
+ * encrypted and the remaining requests are passed to a freshly lifted
+ * decryptor, unless the decryptor has been blacklisted in the meantime.
+ * <p>
+ * The class loaders of the lifted decryptors are bounded by a budget, see
+ * {@link DecryptorCache}.
+ */
+public class LoadingEngine
+    implements DecryptionEngine {
+
+    private final DecryptorCache decryptorCache;
+    private final Watchdog       watchdog;
+
+    public LoadingEngine(File inputJar) {
+        this(inputJar, null);
+    }
+
+    public LoadingEngine(File inputJar, Watchdog watchdog) {
+        this(inputJar, watchdog, 0, 0);
+    }
+
+    /**
+     * Creates a new LoadingEngine.
+     *
+     * @param inputJar        the jar containing the decryptor classes.
+     * @param watchdog        an optional watchdog to abandon stuck decryptors.
+     * @param maxClasses      the maximum number of loaded decryptor classes,
+     *                        0 means unlimited.
+     * @param metaspaceBudget the maximum total class file size in bytes of
+     *                        the loaded decryptor classes, 0 means unlimited.
+     */
+    public LoadingEngine(File inputJar, Watchdog watchdog, int maxClasses, long metaspaceBudget) {
+        this.watchdog = watchdog;
+
+        try {
+            decryptorCache = new DecryptorCache(inputJar, DecryptorCache.DEFAULT_MAX_SIZE, maxClasses, metaspaceBudget);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void decrypt(ProgramClass                   decryptorClass,
+                        Collection<DecryptionRequest>  requests,
+                        Map<DecryptionRequest, String> results,
+                        Metrics                        metrics) throws Exception {
+
+        if (watchdog == null) {
+            try (DecryptorCache.Lease lease = decryptorCache.acquire(decryptorClass, metrics)) {
+                lease.getDecryptor().decryptAll(requests, results, metrics);
+            }
+            return;
+        }
+
+        String                  className       = decryptorClass.getName();
+        List<DecryptionRequest> pendingRequests = new ArrayList<>(requests);
+
+        while (!pendingRequests.isEmpty()) {
+            if (watchdog.isBlacklisted(className)) {
+                System.err.println("skipping " + pendingRequests.size() + " requests to blacklisted decryptor " + className);
+                metrics.increment(Metrics.BLACKLISTED_REQUESTS, pendingRequests.size());
+                return;
+            }
+
+            // The abandoned task might still add results later on, so use a separate map.
+            Map<DecryptionRequest, String> taskResults  = new ConcurrentHashMap<>();
+            AtomicInteger                  currentIndex = new AtomicInteger(-1);
+            List<DecryptionRequest>        taskRequests = pendingRequests;
+
+            boolean completed = watchdog.run(className, progress -> {
+                try (DecryptorCache.Lease lease = decryptorCache.acquire(decryptorClass, metrics)) {
+                    progress.advance();
+
+                    LiftedDecryptor decryptor = lease.getDecryptor();
+                    for (int index = 0; index < taskRequests.size(); index++) {
+                        currentIndex.set(index);
+                        decryptor.decryptAll(Collections.singletonList(taskRequests.get(index)), taskResults, metrics);
+                        progress.advance();
+                    }
+                    currentIndex.set(taskRequests.size());
+                }
+            });
+
+            // The request the abandoned task was running when it got abandoned.
+            int stuckIndex = completed ? taskRequests.size() : currentIndex.get();
+
+            results.putAll(taskResults);
+
+            if (stuckIndex >= taskRequests.size()) {
+                // The task completed all requests, possibly just after the deadline.
+                return;
+            }
+
+            decryptorCache.remove(className, metrics);
+
+            if (stuckIndex >= 0) {
+                DecryptionRequest stuckRequest = taskRequests.get(stuckIndex);
+                System.err.println(String.format("calling method %s timed out", stuckRequest));
+
+                metrics.recordFailure(new TimeoutException());
+                metrics.increment(Metrics.TIMED_OUT_REQUESTS, 1);
+
+                pendingRequests = taskRequests.subList(stuckIndex + 1, taskRequests.size());
+            } else {
+                System.err.println("lifting decryptor " + className + " timed out");
+                metrics.recordFailure(new TimeoutException());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchdog != null) {
+            watchdog.close();
+        }
+        decryptorCache.close();
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import java.io.*;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects timings and counters of a decryption run and writes them
+ * as a JSON report.
+ * <p>
+ * All methods are thread-safe. Each decryption is additionally wrapped
+ * in a flight recorder event if the JVM supports them and the events have
+ * been built, see {@link DecryptionEventFactory}.
+ */
+public class Metrics {
+
+    private static final DecryptionEventFactory EVENT_FACTORY = loadEventFactory();
+
+    /**
+     * The timed phases of a run.
+     */
+    public enum Phase {
+        READ,
+        INITIALIZE,
+        COLLECT,
+        LIFT,
+        PROTECTION_REMOVAL,
+        CLASS_DEFINITION,
+        INVOKE,
+        PATCH,
+        CONSTANT_POOL_SHRINK,
+        STRIP,
+        WRITE
+    }
+
+    public static final String CLASSES                = "classes";
+    public static final String CANDIDATE_CLASSES      = "candidateClasses";
+    public static final String CALL_SITES             = "callSites";
+    public static final String UNIQUE_REQUESTS        = "uniqueRequests";
+    public static final String DECRYPTED_STRINGS      = "decryptedStrings";
+    public static final String FAILED_REQUESTS        = "failedRequests";
+    public static final String TIMED_OUT_REQUESTS     = "timedOutRequests";
+    public static final String BLACKLISTED_REQUESTS   = "blacklistedRequests";
+    public static final String PATCHED_CALL_SITES     = "patchedCallSites";
+    public static final String MODIFIED_CLASSES       = "modifiedClasses";
+    public static final String CACHE_HITS             = "cacheHits";
+    public static final String CACHE_MISSES           = "cacheMisses";
+    public static final String STRIPPED_METHODS       = "strippedMethods";
+    public static final String STRIPPED_FIELDS        = "strippedFields";
+    public static final String STRIPPED_INITIALIZERS  = "strippedInitializers";
+    public static final String CLASS_LOADERS          = "classLoaders";
+    public static final String CLOSED_CLASS_LOADERS   = "closedClassLoaders";
+    public static final String RECYCLED_CLASS_LOADERS = "recycledClassLoaders";
+
+    private final LongAdder[]                   phaseNanos  = newAdders();
+    private final LongAdder[]                   phaseCounts = newAdders();
+    private final Map<String, LongAdder>        counters    = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder>        failures    = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> latencies   = new ConcurrentHashMap<>();
+    private final Map<DecryptionRequest, Long>  requestNanos;
+
+    public Metrics() {
+        this(false);
+    }
+
+    /**
+     * Creates new metrics.
+     *
+     * @param requestDurations whether to keep the duration of each single
+     *                         decryption, see {@link #takeRequestNanos}.
+     */
+    public Metrics(boolean requestDurations) {
+        this.requestNanos = requestDurations ? new ConcurrentHashMap<>() : null;
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[Phase.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static DecryptionEventFactory loadEventFactory() {
+        try {
+            Class.forName("jdk.jfr.Event");
+
+            // Only present if the jfr source set has been built.
+            return (DecryptionEventFactory)
+                Class.forName("com.github.netomi.destringer.JfrDecryptionEventFactory")
+                     .getDeclaredConstructor()
+                     .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds the time elapsed since the given start, as returned by
+     * {@link System#nanoTime()}, to the given phase.
+     */
+    public void record(Phase phase, long startNanos) {
+        phaseNanos[phase.ordinal()].add(System.nanoTime() - startNanos);
+        phaseCounts[phase.ordinal()].increment();
+    }
+
+    public void increment(String counter, long delta) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(delta);
+    }
+
+    public void recordFailure(Throwable failure) {
+        failures.computeIfAbsent(failure.getClass().getName(), k -> new LongAdder()).increment();
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    public long getCounter(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder != null ? adder.sum() : 0;
+    }
+
+    /**
+     * Starts the measurement of a single decryption, the returned value
+     * must be passed to {@link #endDecryption}.
+     */
+    public Object beginDecryption() {
+        return EVENT_FACTORY != null ? EVENT_FACTORY.begin() : null;
+    }
+
+    /**
+     * Records a single decryption of the given request that was started at
+     * the given time and failed with the given exception, if not null.
+     */
+    public void endDecryption(Object            event,
+                              DecryptionRequest request,
+                              long              startNanos,
+                              Throwable         failure) {
+        long nanos = System.nanoTime() - startNanos;
+
+        phaseNanos[Phase.INVOKE.ordinal()].add(nanos);
+        phaseCounts[Phase.INVOKE.ordinal()].increment();
+
+        latencies.computeIfAbsent(request.getDecryptorClassName(), k -> new LatencyHistogram())
+                 .record(nanos);
+
+        if (requestNanos != null) {
+            requestNanos.put(request, nanos);
+        }
+
+        if (failure != null) {
+            recordFailure(failure);
+        }
+
+        if (event != null) {
+            EVENT_FACTORY.end(event, request, failure == null);
+        }
+    }
+
+    /**
+     * Returns and forgets the duration of the last decryption of the given
+     * request in nanoseconds, or -1 if it is unknown.
+     */
+    public long takeRequestNanos(DecryptionRequest request) {
+        Long nanos = requestNanos != null ? requestNanos.remove(request) : null;
+        return nanos != null ? nanos : -1;
+    }
+
+    /**
+     * Writes the collected metrics as JSON to the given file.
+     */
+    public void writeReport(File reportFile) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFile), StandardCharsets.UTF_8))) {
+            writeReport(writer);
+        }
+    }
+
+    public void writeReport(Writer writer) throws IOException {
+        writer.write("{\n  \"phases\": {");
+        String separator = "\n";
+        for (Phase phase : Phase.values()) {
+            writer.write(separator);
+            writer.write("    " + quote(phase.name().toLowerCase(Locale.ROOT)) + ": { " +
+                         "\"count\": " + phaseCounts[phase.ordinal()].sum() + ", " +
+                         "\"totalMillis\": " + millis(phaseNanos[phase.ordinal()].sum()) + " }");
+            separator = ",\n";
+        }
+
+        writer.write("\n  },\n  \"counters\": ");
+        writeCounts(writer, counters);
+
+        writer.write(",\n  \"failures\": ");
+        writeCounts(writer, failures);
+
+        writer.write(",\n  \"decryptors\": {");
+        separator = "\n";
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            writer.write(separator);
+            writer.write("    " + quote(entry.getKey()) + ": ");
+            entry.getValue().writeJson(writer);
+            separator = ",\n";
+        }
+
+        writer.write("\n  },\n  \"memory\": ");
+        writeMemory(writer);
+        writer.write("\n}\n");
+    }
+
+    /**
+     * Writes the current metaspace use and the number of loaded and
+     * unloaded classes of the JVM.
+     */
+    private static void writeMemory(Writer writer) throws IOException {
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+
+        writer.write("{ \"loadedClasses\": "   + classLoading.getLoadedClassCount() +
+                     ", \"unloadedClasses\": " + classLoading.getUnloadedClassCount());
+
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getName().equals("Metaspace")) {
+                writer.write(", \"metaspaceUsed\": "      + memoryPool.getUsage().getUsed() +
+                             ", \"metaspaceCommitted\": " + memoryPool.getUsage().getCommitted() +
+                             ", \"metaspacePeak\": "      + memoryPool.getPeakUsage().getUsed());
+            }
+        }
+        writer.write(" }");
+    }
+
+    private static void writeCounts(Writer writer, Map<String, LongAdder> counts) throws IOException {
+        writer.write("{");
+        String separator = " ";
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counts).entrySet()) {
+            writer.write(separator + quote(entry.getKey()) + ": " + entry.getValue().sum());
+            separator = ", ";
+        }
+        writer.write(" }");
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+
+    static String quote(String string) {
+        StringBuilder sb = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n");  break;
+                case '\r': sb.append("\\r");  break;
+                case '\t': sb.append("\\t");  break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * A histogram of latencies with power of two buckets in nanoseconds.
+     */
+    private static class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder       count   = new LongAdder();
+        private final LongAdder       total   = new LongAdder();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+            count.increment();
+            total.add(nanos);
+        }
+
+        /**
+         * Returns the upper bound of the bucket that contains the given quantile.
+         */
+        private long quantile(double quantile) {
+            long threshold = (long) Math.ceil(count.sum() * quantile);
+            long seen      = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= threshold && seen > 0) {
+                    return i < 62 ? 2L << i : Long.MAX_VALUE;
+                }
+            }
+            return 0;
+        }
+
+        void writeJson(Writer writer) throws IOException {
+            long count = this.count.sum();
+
+            writer.write("{ \"count\": " + count +
+                         ", \"meanMicros\": " + (count > 0 ? total.sum() / count / 1000 : 0) +
+                         ", \"p50Micros\": "  + quantile(0.50) / 1000 +
+                         ", \"p90Micros\": "  + quantile(0.90) / 1000 +
+                         ", \"p99Micros\": "  + quantile(0.99) / 1000 +
+                         ", \"buckets\": {");
+
+            String separator = " ";
+            for (int i = 0; i < buckets.length(); i++) {
+                long bucketCount = buckets.get(i);
+                if (bucketCount > 0) {
+                    // bucket i holds latencies in [2^i, 2^(i+1)) nanoseconds.
+                    writer.write(separator + quote("<" + (2L << i) + "ns") + ": " + bucketCount);
+                    separator = ", ";
+                }
+            }
+            writer.write(" } }");
+        }
+    }
+}
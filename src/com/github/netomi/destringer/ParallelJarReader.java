@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ClassConstants;
+import proguard.classfile.ClassPool;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.io.ProgramClassReader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static com.github.netomi.destringer.JarCentralDirectory.*;
+
+/**
+ * Reads the program classes of a jar on several threads.
+ * <p>
+ * The jar is memory-mapped, its central directory is read directly from
+ * the mapping and the class entries are inflated and parsed in parallel,
+ * each thread with its own inflater. The parsed classes are added to the
+ * class pool in the order of the central directory, so the result is the
+ * same as for {@link Destringer#readJar}, which is used as a fallback for
+ * jars that can not be mapped or are in zip64 format.
+ */
+public class ParallelJarReader {
+
+    // The number of chunks per thread the class entries are split into.
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final int threads;
+
+    public ParallelJarReader(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Reads all classes of the given jar into the given class pool.
+     */
+    public ClassPool read(File jarFile, ClassPool classPool) throws IOException {
+        try (FileChannel channel = FileChannel.open(jarFile.toPath(), StandardOpenOption.READ)) {
+            List<ClassEntry> entries = channel.size() <= Integer.MAX_VALUE ?
+                readClassEntries(jarFile, channel) :
+                null;
+
+            if (entries == null) {
+                return Destringer.readJar(jarFile.getPath(), false, classPool);
+            }
+
+            for (ProgramClass programClass : parse(entries)) {
+                classPool.addClass(programClass);
+            }
+            return classPool;
+        }
+    }
+
+    /**
+     * Returns the class entries of the given jar, or null if the jar is in
+     * zip64 format.
+     */
+    private static List<ClassEntry> readClassEntries(File jarFile, FileChannel channel) throws IOException {
+        JarCentralDirectory centralDirectory = JarCentralDirectory.read(jarFile, channel);
+        if (centralDirectory == null) {
+            return null;
+        }
+
+        ByteBuffer jar = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                                .order(ByteOrder.LITTLE_ENDIAN);
+
+        List<ClassEntry> entries = new ArrayList<>(centralDirectory.entries.size());
+        for (JarCentralDirectory.Entry entry : centralDirectory.entries) {
+            if (entry.name.endsWith(ClassConstants.CLASS_FILE_EXTENSION)) {
+                if (entry.localHeaderOffset + entry.compressedSize > jar.limit() ||
+                    entry.size > Integer.MAX_VALUE) {
+                    throw new ZipException("invalid entry size in " + jarFile + ": " + entry.name);
+                }
+
+                entries.add(new ClassEntry(jar,
+                                           entry.name,
+                                           entry.method,
+                                           (int) entry.compressedSize,
+                                           (int) entry.size,
+                                           (int) entry.localHeaderOffset));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Parses the given class entries, returning the classes in the same order.
+     */
+    private List<ProgramClass> parse(List<ClassEntry> entries) throws IOException {
+        int chunkCount = Math.max(1, threads * CHUNKS_PER_THREAD);
+        int chunkSize  = Math.max(1, (entries.size() + chunkCount - 1) / chunkCount);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+
+        try {
+            List<Future<List<ProgramClass>>> futures = new ArrayList<>();
+            for (int start = 0; start < entries.size(); start += chunkSize) {
+                List<ClassEntry> chunk = entries.subList(start, Math.min(start + chunkSize, entries.size()));
+
+                futures.add(executor.submit(() -> {
+                    List<ProgramClass> programClasses = new ArrayList<>(chunk.size());
+                    Inflater           inflater       = new Inflater(true);
+                    try {
+                        for (ClassEntry entry : chunk) {
+                            ProgramClass programClass = new ProgramClass();
+                            programClass.accept(
+                                new ProgramClassReader(
+                                new DataInputStream(
+                                new ByteArrayInputStream(entry.read(inflater)))));
+
+                            programClasses.add(programClass);
+                        }
+                    } finally {
+                        inflater.end();
+                    }
+                    return programClasses;
+                }));
+            }
+
+            List<ProgramClass> programClasses = new ArrayList<>(entries.size());
+            for (Future<List<ProgramClass>> future : futures) {
+                programClasses.addAll(future.get());
+            }
+            return programClasses;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ?
+                (IOException) cause :
+                new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("reading jar interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int readShort(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset) & 0xffff;
+    }
+
+    /**
+     * A class entry in the central directory of a mapped jar.
+     */
+    private static class ClassEntry {
+        private final ByteBuffer jar;
+        private final String     name;
+        private final int        method;
+        private final int        compressedSize;
+        private final int        size;
+        private final int        localHeaderOffset;
+
+        ClassEntry(ByteBuffer jar, String name, int method, int compressedSize, int size, int localHeaderOffset) {
+            this.jar               = jar;
+            this.name              = name;
+            this.method            = method;
+            this.compressedSize    = compressedSize;
+            this.size              = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        /**
+         * Returns the uncompressed content of the entry.
+         */
+        byte[] read(Inflater inflater) throws IOException {
+            if (jar.getInt(localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("invalid local header for " + name);
+            }
+
+            int dataOffset = localHeaderOffset +
+                             LOCAL_HEADER_SIZE +
+                             readShort(jar, localHeaderOffset + 26) +
+                             readShort(jar, localHeaderOffset + 28);
+
+            byte[] data = new byte[compressedSize];
+            ((ByteBuffer) jar.duplicate().position(dataOffset)).get(data);
+
+            switch (method) {
+                case METHOD_STORED:
+                    return data;
+
+                case METHOD_DEFLATED:
+                    byte[] content = new byte[size];
+
+                    inflater.reset();
+                    inflater.setInput(data);
+                    try {
+                        int count = 0;
+                        while (count < size && !inflater.finished()) {
+                            int inflated = inflater.inflate(content, count, size - count);
+                            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                                break;
+                            }
+                            count += inflated;
+                        }
+                        if (count != size) {
+                            throw new ZipException("invalid compressed data for " + name);
+                        }
+                    } catch (DataFormatException e) {
+                        throw new ZipException("invalid compressed data for " + name + ": " + e.getMessage());
+                    }
+                    return content;
+
+                default:
+                    throw new ZipException("unsupported compression method " + method + " for " + name);
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ClassConstants;
+import proguard.classfile.ClassPool;
+import proguard.classfile.Clazz;
+import proguard.classfile.ProgramClass;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.*;
+
+import static com.github.netomi.destringer.JarCentralDirectory.*;
+
+/**
+ * Writes an output jar based on an input jar, only re-serializing the
+ * classes that have actually been modified.
+ * <p>
+ * All other entries, including resources, manifests and service files,
+ * are copied byte-for-byte from the input jar without being decompressed
+ * or parsed. Input jars in zip64 format are copied by re-compressing
+ * their entries instead.
+ */
+public class PassThroughJarWriter {
+
+    private final File inputJar;
+
+    public PassThroughJarWriter(File inputJar) {
+        this.inputJar = inputJar;
+    }
+
+    /**
+     * Writes the output jar, taking the given modified classes from the
+     * class pool and all other entries from the input jar.
+     */
+    public void write(ClassPool   programClassPool,
+                      Set<String> modifiedClassNames,
+                      File        outputJar) throws IOException {
+
+        try (RandomAccessFile input = new RandomAccessFile(inputJar, "r")) {
+            JarCentralDirectory centralDirectory = JarCentralDirectory.read(inputJar, input.getChannel());
+
+            if (centralDirectory == null) {
+                copyRecompressed(programClassPool, modifiedClassNames, outputJar);
+            } else {
+                copyRaw(input, centralDirectory, programClassPool, modifiedClassNames, outputJar);
+            }
+        }
+    }
+
+    private void copyRaw(RandomAccessFile    input,
+                         JarCentralDirectory centralDirectory,
+                         ClassPool           programClassPool,
+                         Set<String>         modifiedClassNames,
+                         File                outputJar) throws IOException {
+
+        Set<String> remainingClassNames = new TreeSet<>(modifiedClassNames);
+
+        try (PositionOutputStream output =
+                 new PositionOutputStream(new BufferedOutputStream(new FileOutputStream(outputJar)))) {
+
+            ByteArrayOutputStream newCentralDirectory = new ByteArrayOutputStream();
+            int                   entryCount          = 0;
+
+            for (JarCentralDirectory.Entry entry : centralDirectory.entries) {
+                String className = className(entry.name);
+
+                long localHeaderOffset = output.position();
+
+                byte[] classBytes = className != null && remainingClassNames.remove(className) ?
+                    classBytes(programClassPool, className) :
+                    null;
+
+                byte[] centralHeader;
+                if (classBytes != null) {
+                    centralHeader =
+                        writeEntry(output,
+                                   entry.name,
+                                   classBytes,
+                                   entry.dosTime,
+                                   entry.externalAttributes);
+                } else {
+                    copyLocalEntry(input, entry.localHeaderOffset, entry.compressedSize, entry.flags, output);
+
+                    centralHeader = Arrays.copyOfRange(centralDirectory.bytes,
+                                                       entry.headerOffset,
+                                                       entry.headerOffset + entry.headerLength);
+                }
+
+                writeInt(centralHeader, 42, localHeaderOffset);
+                newCentralDirectory.write(centralHeader);
+                entryCount++;
+            }
+
+            // Add any modified classes that were not found in the input jar.
+            for (String className : remainingClassNames) {
+                byte[] classBytes = classBytes(programClassPool, className);
+                if (classBytes != null) {
+                    long localHeaderOffset = output.position();
+
+                    byte[] centralHeader =
+                        writeEntry(output,
+                                   className + ClassConstants.CLASS_FILE_EXTENSION,
+                                   classBytes,
+                                   dosTime(System.currentTimeMillis()),
+                                   0);
+
+                    writeInt(centralHeader, 42, localHeaderOffset);
+                    newCentralDirectory.write(centralHeader);
+                    entryCount++;
+                }
+            }
+
+            long centralDirectoryOffset = output.position();
+            if (entryCount >= 0xffff || centralDirectoryOffset >= 0xffffffffL) {
+                throw new ZipException("output jar requires zip64 format");
+            }
+
+            newCentralDirectory.writeTo(output);
+
+            byte[] end = new byte[END_OF_CENTRAL_DIR_SIZE];
+            writeInt(end,   0, END_OF_CENTRAL_DIR_SIGNATURE);
+            writeShort(end, 8, entryCount);
+            writeShort(end, 10, entryCount);
+            writeInt(end,  12, newCentralDirectory.size());
+            writeInt(end,  16, centralDirectoryOffset);
+            writeShort(end, 20, centralDirectory.comment.length);
+
+            output.write(end);
+            output.write(centralDirectory.comment);
+        }
+    }
+
+    /**
+     * Copies the local header, data and optional data descriptor of an entry.
+     */
+    private static void copyLocalEntry(RandomAccessFile input,
+                                       long             localHeaderOffset,
+                                       long             compressedSize,
+                                       int              flags,
+                                       OutputStream     output) throws IOException {
+
+        byte[] localHeader = new byte[LOCAL_HEADER_SIZE];
+        input.seek(localHeaderOffset);
+        input.readFully(localHeader);
+
+        if (readInt(localHeader, 0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("invalid local header at offset " + localHeaderOffset);
+        }
+
+        long length = LOCAL_HEADER_SIZE +
+                      readShort(localHeader, 26) +
+                      readShort(localHeader, 28) +
+                      compressedSize;
+
+        if ((flags & FLAG_DATA_DESCRIPTOR) != 0) {
+            // The data descriptor may or may not start with a signature.
+            byte[] signature = new byte[4];
+            input.seek(localHeaderOffset + length);
+            input.readFully(signature);
+
+            length += readInt(signature, 0) == DATA_DESCRIPTOR_SIGNATURE ? 16 : 12;
+        }
+
+        input.seek(localHeaderOffset);
+
+        byte[] buffer = new byte[64 * 1024];
+        while (length > 0) {
+            int count = input.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (count < 0) {
+                throw new EOFException("unexpected end of " + localHeaderOffset);
+            }
+            output.write(buffer, 0, count);
+            length -= count;
+        }
+    }
+
+    /**
+     * Writes a new deflated entry and returns its central directory header,
+     * without the local header offset.
+     */
+    private static byte[] writeEntry(OutputStream output,
+                                     String       entryName,
+                                     byte[]       content,
+                                     int          dosTime,
+                                     int          externalAttributes) throws IOException {
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(compressed, deflater)) {
+            deflaterOutput.write(content);
+        } finally {
+            deflater.end();
+        }
+
+        byte[] name = entryName.getBytes(StandardCharsets.UTF_8);
+
+        byte[] localHeader = new byte[LOCAL_HEADER_SIZE];
+        writeInt(localHeader,    0, LOCAL_HEADER_SIGNATURE);
+        writeShort(localHeader,  4, 20);
+        writeShort(localHeader,  6, FLAG_UTF8);
+        writeShort(localHeader,  8, ZipEntry.DEFLATED);
+        writeInt(localHeader,   10, dosTime);
+        writeInt(localHeader,   14, crc.getValue());
+        writeInt(localHeader,   18, compressed.size());
+        writeInt(localHeader,   22, content.length);
+        writeShort(localHeader, 26, name.length);
+
+        output.write(localHeader);
+        output.write(name);
+        compressed.writeTo(output);
+
+        byte[] centralHeader = new byte[CENTRAL_HEADER_SIZE + name.length];
+        writeInt(centralHeader,    0, CENTRAL_HEADER_SIGNATURE);
+        writeShort(centralHeader,  4, 20);
+        writeShort(centralHeader,  6, 20);
+        writeShort(centralHeader,  8, FLAG_UTF8);
+        writeShort(centralHeader, 10, ZipEntry.DEFLATED);
+        writeInt(centralHeader,   12, dosTime);
+        writeInt(centralHeader,   16, crc.getValue());
+        writeInt(centralHeader,   20, compressed.size());
+        writeInt(centralHeader,   24, content.length);
+        writeShort(centralHeader, 28, name.length);
+        writeInt(centralHeader,   38, externalAttributes);
+        System.arraycopy(name, 0, centralHeader, CENTRAL_HEADER_SIZE, name.length);
+
+        return centralHeader;
+    }
+
+    /**
+     * Copies all entries using the regular zip streams, decompressing
+     * and re-compressing them.
+     */
+    private void copyRecompressed(ClassPool   programClassPool,
+                                  Set<String> modifiedClassNames,
+                                  File        outputJar) throws IOException {
+
+        Set<String> remainingClassNames = new TreeSet<>(modifiedClassNames);
+
+        try (ZipFile         zipFile = new ZipFile(inputJar);
+             ZipOutputStream output  = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputJar)))) {
+
+            byte[] buffer = new byte[64 * 1024];
+
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry     = entries.nextElement();
+                String   className = className(entry.getName());
+
+                byte[] classBytes = className != null && remainingClassNames.remove(className) ?
+                    classBytes(programClassPool, className) :
+                    null;
+
+                ZipEntry outputEntry = new ZipEntry(entry.getName());
+                outputEntry.setTime(entry.getTime());
+                output.putNextEntry(outputEntry);
+
+                if (classBytes != null) {
+                    output.write(classBytes);
+                } else {
+                    try (InputStream input = zipFile.getInputStream(entry)) {
+                        int count;
+                        while ((count = input.read(buffer)) >= 0) {
+                            output.write(buffer, 0, count);
+                        }
+                    }
+                }
+
+                output.closeEntry();
+            }
+
+            for (String className : remainingClassNames) {
+                byte[] classBytes = classBytes(programClassPool, className);
+                if (classBytes != null) {
+                    output.putNextEntry(new ZipEntry(className + ClassConstants.CLASS_FILE_EXTENSION));
+                    output.write(classBytes);
+                    output.closeEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the class file of the given modified class, or null if it
+     * is not part of the class pool.
+     */
+    private static byte[] classBytes(ClassPool programClassPool, String className) throws IOException {
+        // A lazy class pool has already serialized its modified classes.
+        if (programClassPool instanceof LazyProgramClassPool) {
+            byte[] classBytes = ((LazyProgramClassPool) programClassPool).getModifiedClassBytes(className);
+            if (classBytes != null) {
+                return classBytes;
+            }
+        }
+
+        Clazz clazz = programClassPool.getClass(className);
+        return clazz instanceof ProgramClass ?
+            CodeLifter.toByteArray((ProgramClass) clazz) :
+            null;
+    }
+
+    /**
+     * Returns the internal class name for the given entry name, or null
+     * if the entry is not a class file.
+     */
+    private static String className(String entryName) {
+        return entryName.endsWith(ClassConstants.CLASS_FILE_EXTENSION) ?
+            entryName.substring(0, entryName.length() - ClassConstants.CLASS_FILE_EXTENSION.length()) :
+            null;
+    }
+
+    private static int dosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+
+        return (calendar.get(Calendar.YEAR) - 1980)    << 25 |
+               (calendar.get(Calendar.MONTH) + 1)      << 21 |
+               calendar.get(Calendar.DAY_OF_MONTH)     << 16 |
+               calendar.get(Calendar.HOUR_OF_DAY)      << 11 |
+               calendar.get(Calendar.MINUTE)           <<  5 |
+               calendar.get(Calendar.SECOND)           >>  1;
+    }
+
+    /**
+     * An output stream that keeps track of the number of written bytes.
+     */
+    private static class PositionOutputStream extends FilterOutputStream {
+        private long position;
+
+        PositionOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long position() {
+            return position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An on-disk cache of decrypted strings that is shared across runs.
+ * <p>
+ * Entries are keyed by a digest of the decryptor class bytes, the decrypt
+ * method, its argument and the caller context, so that any change to the
+ * decryptor class invalidates its entries. The cache is stored in an
+ * append-only file which is read completely when the cache is opened.
+ * <p>
+ * The file may be shared by concurrent processes: it is only read, truncated
+ * and appended to while holding a lock on it, and new entries are appended
+ * as whole records. Anything following an incomplete or corrupt record is
+ * discarded. A file that does not start with the expected header, e.g. one
+ * written by another version, is left alone and the cache stays empty.
+ */
+public class PersistentResultCache
+    implements Closeable {
+
+    public static final File DEFAULT_DIRECTORY =
+        new File(System.getProperty("user.home"), ".destringer/cache");
+
+    private static final String FILE_NAME   = "results.bin";
+    private static final int    MAGIC       = 0x44534331; // "DSC1"
+    private static final int    KEY_LENGTH  = 32;
+    private static final String DIGEST_NAME = "SHA-256";
+
+    // The size of the pending records after which they are appended to the file.
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+    private final Map<ByteBuffer, String> entries = new HashMap<>();
+    private final File                    cacheFile;
+    private final FileChannel             channel;
+    private final ByteArrayOutputStream   pendingBytes   = new ByteArrayOutputStream();
+    private final DataOutputStream        pendingRecords = new DataOutputStream(pendingBytes);
+    private       long                    knownLength;
+    private       boolean                 unknownFormat;
+
+    private PersistentResultCache(File cacheFile) throws IOException {
+        this.cacheFile = cacheFile;
+
+        channel = FileChannel.open(cacheFile.toPath(),
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+
+        try (FileLock lock = channel.lock()) {
+            synchronize();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the cache in the given directory, creating it if necessary.
+     */
+    public static PersistentResultCache open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create cache directory " + directory);
+        }
+        return new PersistentResultCache(new File(directory, FILE_NAME));
+    }
+
+    /**
+     * Reads the records that have been appended to the file since it was
+     * last read, e.g. by other processes, and truncates the file after the
+     * last valid record. Must be called while holding the file lock.
+     *
+     * @return false if the file has an unknown format, in which case it is
+     *         left unchanged.
+     */
+    private boolean synchronize() throws IOException {
+        if (unknownFormat) {
+            return false;
+        }
+
+        long fileLength = channel.size();
+        if (fileLength == knownLength && knownLength > 0) {
+            return true;
+        }
+
+        long validLength = fileLength < knownLength ?
+            read(0, fileLength) :
+            read(knownLength, fileLength);
+
+        if (validLength < 0) {
+            unknownFormat = true;
+            System.err.println("cache file " + cacheFile + " has an unknown format, not using it");
+            return false;
+        }
+
+        // Drop any partially written or corrupt record, e.g. from an aborted run.
+        if (validLength < fileLength) {
+            channel.truncate(validLength);
+        }
+
+        if (validLength == 0) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, MAGIC), 0);
+            validLength = 4;
+        }
+
+        knownLength = validLength;
+        return true;
+    }
+
+    /**
+     * Reads all complete records between the given offsets of the file and
+     * returns the length of the valid part of the file, or -1 if the file
+     * does not start with the expected header.
+     */
+    private long read(long offset, long fileLength) throws IOException {
+        channel.position(offset);
+
+        // The input is not closed, as that would close the channel.
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+        long validLength = offset;
+
+        try {
+            if (offset == 0) {
+                if (input.readInt() != MAGIC) {
+                    return -1;
+                }
+                validLength = 4;
+            }
+
+            while (true) {
+                byte[] key = new byte[KEY_LENGTH];
+                input.readFully(key);
+
+                String value = readString(input, fileLength - validLength - KEY_LENGTH - 4);
+                if (value == null) {
+                    break;
+                }
+
+                entries.put(ByteBuffer.wrap(key), value);
+                validLength += KEY_LENGTH + 4 + 2L * value.length();
+            }
+        } catch (EOFException e) {
+            // The end of the file, possibly within a partial record.
+        }
+
+        return validLength;
+    }
+
+    /**
+     * Returns the digest of the given decryptor class bytes.
+     */
+    public static byte[] classDigest(byte[] classBytes) {
+        MessageDigest digest = newDigest();
+        digest.update(classBytes);
+        return digest.digest();
+    }
+
+    /**
+     * Returns the cache key of the given request to a decryptor class with
+     * the given digest.
+     */
+    public static byte[] key(byte[] classDigest, DecryptionRequest request) {
+        MessageDigest digest = newDigest();
+        digest.update(classDigest);
+        updateString(digest, request.getMethodName());
+        updateString(digest, request.getArgument());
+        updateString(digest, request.getCallerClassName());
+        updateString(digest, request.getCallerMethodName());
+        updateInt(digest, request.getConstantPoolSize());
+        return digest.digest();
+    }
+
+    /**
+     * Returns the cached string for the given key, or null if it is not cached.
+     */
+    public String get(byte[] key) {
+        synchronized (entries) {
+            return entries.get(ByteBuffer.wrap(key));
+        }
+    }
+
+    /**
+     * Adds the given entry to the cache, it is appended to the cache file
+     * with the next flush.
+     */
+    public void put(byte[] key, String value) throws IOException {
+        synchronized (entries) {
+            if (entries.put(ByteBuffer.wrap(key), value) == null && !unknownFormat) {
+                pendingRecords.write(key);
+                writeString(pendingRecords, value);
+
+                if (pendingBytes.size() >= FLUSH_THRESHOLD) {
+                    flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends any pending entries to the cache file, picking up the entries
+     * other processes have appended in the meantime.
+     */
+    public void flush() throws IOException {
+        synchronized (entries) {
+            if (pendingBytes.size() == 0) {
+                return;
+            }
+
+            try (FileLock lock = channel.lock()) {
+                if (!synchronize()) {
+                    pendingBytes.reset();
+                    return;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(pendingBytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    knownLength += channel.write(buffer, knownLength);
+                }
+                channel.force(false);
+            }
+
+            pendingBytes.reset();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (entries) {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // Strings are stored as raw chars, so that any char sequence is preserved.
+
+    /**
+     * Reads a string of at most the given number of bytes, or returns null
+     * if the stored length is invalid.
+     */
+    private static String readString(DataInput input, long maxBytes) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || 2L * length > maxBytes) {
+            return null;
+        }
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = input.readChar();
+        }
+        return new String(chars);
+    }
+
+    private static void writeString(DataOutput output, String value) throws IOException {
+        output.writeInt(value.length());
+        output.writeChars(value);
+    }
+
+    private static void updateString(MessageDigest digest, String value) {
+        updateInt(digest, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            digest.update((byte) (c >>> 8));
+            digest.update((byte) c);
+        }
+    }
+
+    private static void updateInt(MessageDigest digest, int value) {
+        digest.update((byte) (value >>> 24));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) value);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_NAME);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -29,6 +29,10 @@ import proguard.classfile.instruction.visitor.InstructionCounter;
 import proguard.classfile.visitor.AllMethodVisitor;
 import proguard.classfile.visitor.ClassVisitor;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
 /**
  * Thus class removes any protection mechanisms in the decrypt methods.
  * <p>
@@ -42,16 +46,83 @@ public class ProtectionRemover
     implements ClassVisitor,
                AttributeVisitor {
 
-    private final Constant[]        constants;
-    private final Instruction[][][] instructions;
+    private static final String NAME_JAVA_LANG_STRING_BUILDER = "java/lang/StringBuilder";
+
+    // The maximum number of compiled pattern sets that are kept for reuse.
+    private static final int MAX_CACHED_PATTERNS = 1024;
+
+    private static final Map<String, Patterns> patternCache =
+        new LinkedHashMap<String, Patterns>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Patterns> eldest) {
+                return size() > MAX_CACHED_PATTERNS;
+            }
+        };
+
+    private final AttributeVisitor peepholeEditor;
+
+    /**
+     * Creates a new ProtectionRemover that replaces the protection checks
+     * with reads of the caller context fields that have been injected into
+     * the given lifted class, see {@link CodeLifter#liftClass(ProgramClass)}.
+     * <p>
+     * This allows to lift a decryptor class once and reuse it for any
+     * call site by updating the caller context before each invocation.
+     */
+    public ProtectionRemover(String liftedClassName) {
+
+        this(compile(liftedClassName, ____ ->
+            createInstructions(____,
+                               ____.getstatic(liftedClassName, CodeLifter.CONSTANT_POOL_SIZE_FIELD, "I")
+                                   .invokevirtual(NAME_JAVA_LANG_STRING_BUILDER, "append", "(I)Ljava/lang/StringBuilder;").__(),
+
+                               ____.getstatic(liftedClassName, CodeLifter.CALLER_CLASS_NAME_FIELD, "Ljava/lang/String;")
+                                   .invokevirtual(NAME_JAVA_LANG_STRING_BUILDER, "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;").__(),
+
+                               ____.getstatic(liftedClassName, CodeLifter.CALLER_METHOD_NAME_FIELD, "Ljava/lang/String;")
+                                   .invokevirtual(NAME_JAVA_LANG_STRING_BUILDER, "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;").__())));
+    }
 
-    public ProtectionRemover(String className,
-                             String methodName,
-                             int    constantPoolSize) {
+    private ProtectionRemover(Patterns patterns) {
+        CodeAttributeEditor codeAttributeEditor = new CodeAttributeEditor();
 
-        InstructionSequenceBuilder ____ = new InstructionSequenceBuilder();
+        peepholeEditor =
+            new PeepholeEditor(codeAttributeEditor,
+            new InstructionSequencesReplacer(patterns.constants,
+                                             patterns.instructions,
+                                             null,
+                                             codeAttributeEditor,
+                                             new InstructionCounter()));
+    }
+
+    /**
+     * Returns the compiled patterns for the given key, creating them with
+     * the given function if they are not cached yet.
+     * <p>
+     * The patterns are only read while matching, so they can be shared
+     * between removers, also across threads.
+     */
+    private static Patterns compile(String                                                   key,
+                                    Function<InstructionSequenceBuilder, Instruction[][][]> instructionsFactory) {
+        synchronized (patternCache) {
+            Patterns patterns = patternCache.get(key);
+            if (patterns == null) {
+                InstructionSequenceBuilder ____ = new InstructionSequenceBuilder();
+
+                Instruction[][][] instructions = instructionsFactory.apply(____);
+
+                patterns = new Patterns(____.constants(), instructions);
+                patternCache.put(key, patterns);
+            }
+            return patterns;
+        }
+    }
 
-        instructions = new Instruction[][][]
+    private static Instruction[][][] createInstructions(InstructionSequenceBuilder ____,
+                                                        Instruction[]              constantPoolSizeReplacement,
+                                                        Instruction[]              classNameReplacement,
+                                                        Instruction[]              methodNameReplacement) {
+        return new Instruction[][][]
             {
                 {
                     ____.invokestatic("sun/misc/SharedSecrets", "getJavaLangAccess", "()Lsun/misc/JavaLangAccess;")
@@ -62,10 +133,9 @@ public class ProtectionRemover
                         .invokestatic("java/lang/Class", "forName", "(Ljava/lang/String;)Ljava/lang/Class;")
                         .invokeinterface("sun/misc/JavaLangAccess", "getConstantPool", "(Ljava/lang/Class;)Lsun/reflect/ConstantPool;")
                         .invokevirtual("sun/reflect/ConstantPool", "getSize", "()I")
-                        .invokevirtual("java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;").__(),
+                        .invokevirtual(NAME_JAVA_LANG_STRING_BUILDER, "append", "(I)Ljava/lang/StringBuilder;").__(),
 
-                    ____.pushInt(constantPoolSize)
-                        .invokevirtual("java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;").__(),
+                    constantPoolSizeReplacement
                 },
 
                 {
@@ -73,10 +143,9 @@ public class ProtectionRemover
                         .iconst_2()
                         .aaload()
                         .invokevirtual("java/lang/StackTraceElement", "getClassName", "()Ljava/lang/String;")
-                        .invokevirtual("java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;").__(),
+                        .invokevirtual(NAME_JAVA_LANG_STRING_BUILDER, "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;").__(),
 
-                    ____.ldc(className)
-                        .invokevirtual("java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;").__(),
+                    classNameReplacement
                 },
 
                 {
@@ -84,14 +153,11 @@ public class ProtectionRemover
                         .iconst_2()
                         .aaload()
                         .invokevirtual("java/lang/StackTraceElement", "getMethodName", "()Ljava/lang/String;")
-                        .invokevirtual("java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;").__(),
+                        .invokevirtual(NAME_JAVA_LANG_STRING_BUILDER, "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;").__(),
 
-                    ____.ldc(methodName)
-                        .invokevirtual("java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;").__(),
+                    methodNameReplacement
                 }
             };
-
-        constants = ____.constants();
     }
 
     @Override
@@ -111,17 +177,21 @@ public class ProtectionRemover
 
     @Override
     public void visitCodeAttribute(Clazz clazz, Method method, CodeAttribute codeAttribute) {
-        CodeAttributeEditor codeAttributeEditor = new CodeAttributeEditor();
-
-        clazz.accept(
-            new AllMethodVisitor(
-            new AllAttributeVisitor(
-            new PeepholeEditor(codeAttributeEditor,
-            new InstructionSequencesReplacer(constants,
-                                             instructions,
-                                             null,
-                                             codeAttributeEditor,
-                                             new InstructionCounter())))));
+        // Only edit the visited code attribute, the class is traversed once.
+        peepholeEditor.visitCodeAttribute(clazz, method, codeAttribute);
     }
 
+    /**
+     * A compiled set of instruction sequences and their replacements,
+     * together with the constants they refer to.
+     */
+    private static class Patterns {
+        final Constant[]        constants;
+        final Instruction[][][] instructions;
+
+        Patterns(Constant[] constants, Instruction[][][] instructions) {
+            this.constants    = constants;
+            this.instructions = instructions;
+        }
+    }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.Method;
+import proguard.classfile.ProgramClass;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An asynchronous log of decryption results with one JSON record per
+ * line (NDJSON).
+ * <p>
+ * Each record describes the decryption of a single call site: its caller
+ * class, method and offset, the decryptor class and method, the encrypted
+ * argument, the decrypted string, the duration of the decryption in
+ * nanoseconds (or -1 if unknown, e.g. for cached results) and its status.
+ * Records are handed to a background thread that formats them and writes
+ * them in batches, so that logging does not slow down the decryption.
+ */
+public class ResultLog
+    implements Closeable {
+
+    /**
+     * The status of a logged decryption.
+     */
+    public enum Status {
+        OK,
+        CACHED,
+        FAILED
+    }
+
+    // The maximum number of records waiting to be written.
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+
+    // The number of characters after which a batch of records is written.
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    // Marks the end of the queue.
+    private static final Record END = new Record(null, null, -1, null, null, -1, null);
+
+    private final    OutputStream          outputStream;
+    private final    boolean               closeStream;
+    private final    BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final    Thread                thread;
+    private volatile IOException           failure;
+    private          PrintStream           redirectedOutput;
+
+    private ResultLog(OutputStream outputStream, boolean closeStream) {
+        this.outputStream = outputStream;
+        this.closeStream  = closeStream;
+        this.thread       = new Thread(this::writeRecords, "destringer-result-log");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns a result log that writes to the given file.
+     */
+    public static ResultLog open(File file) throws IOException {
+        return new ResultLog(new FileOutputStream(file), true);
+    }
+
+    /**
+     * Returns a result log that writes to the standard output.
+     * <p>
+     * Until the log is closed, {@link System#out} is redirected to the
+     * standard error, so that no other output, e.g. of loaded decryptors,
+     * ends up between the records.
+     */
+    public static ResultLog standardOutput() {
+        // Keep the standard output for the records, like the decryptor worker does.
+        PrintStream standardOutput = System.out;
+        System.setOut(System.err);
+
+        ResultLog resultLog = new ResultLog(standardOutput, false);
+        resultLog.redirectedOutput = standardOutput;
+        return resultLog;
+    }
+
+    /**
+     * Logs the decryption of the given call site, blocking if the writer
+     * falls too far behind.
+     */
+    public void log(CallSite callSite, String result, long durationNanos, Status status) {
+        ProgramClass      callerClass  = callSite.getCallerClass();
+        Method            callerMethod = callSite.getCallerMethod();
+        DecryptionRequest request      = callSite.getRequest();
+
+        Record record = new Record(callerClass.getName(),
+                                   callerMethod.getName(callerClass) + callerMethod.getDescriptor(callerClass),
+                                   callSite.getLoadOffset(),
+                                   request,
+                                   result,
+                                   durationNanos,
+                                   status);
+
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes all pending records and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("closing result log interrupted");
+        }
+
+        if (closeStream) {
+            outputStream.close();
+        }
+
+        if (redirectedOutput != null) {
+            System.setOut(redirectedOutput);
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeRecords() {
+        List<Record>  records = new ArrayList<>();
+        StringBuilder batch   = new StringBuilder(BATCH_SIZE + 1024);
+
+        try {
+            boolean end = false;
+            while (!end) {
+                records.add(queue.take());
+                queue.drainTo(records);
+
+                for (Record record : records) {
+                    if (record == END) {
+                        end = true;
+                        break;
+                    }
+
+                    record.appendTo(batch);
+                    if (batch.length() >= BATCH_SIZE) {
+                        write(batch);
+                    }
+                }
+                records.clear();
+
+                // Only flush once the producers are idle.
+                if (end || queue.isEmpty()) {
+                    write(batch);
+                    outputStream.flush();
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            // Keep draining, so that producers do not block forever.
+            drainUntilEnd();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(StringBuilder batch) throws IOException {
+        if (batch.length() > 0) {
+            outputStream.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+            batch.setLength(0);
+        }
+    }
+
+    private void drainUntilEnd() {
+        try {
+            while (queue.take() != END) {
+                // discard
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A logged decryption, only referencing strings, so that the caller
+     * classes can be evicted while the record is queued.
+     */
+    private static class Record {
+        private final String            callerClassName;
+        private final String            callerMethod;
+        private final int               offset;
+        private final DecryptionRequest request;
+        private final String            result;
+        private final long              durationNanos;
+        private final Status            status;
+
+        Record(String            callerClassName,
+               String            callerMethod,
+               int               offset,
+               DecryptionRequest request,
+               String            result,
+               long              durationNanos,
+               Status            status) {
+            this.callerClassName = callerClassName;
+            this.callerMethod    = callerMethod;
+            this.offset          = offset;
+            this.request         = request;
+            this.result          = result;
+            this.durationNanos   = durationNanos;
+            this.status          = status;
+        }
+
+        void appendTo(StringBuilder line) {
+            line.append("{\"callerClass\":")   .append(Metrics.quote(callerClassName))
+                .append(",\"callerMethod\":")  .append(Metrics.quote(callerMethod))
+                .append(",\"offset\":")        .append(offset)
+                .append(",\"decryptorClass\":").append(Metrics.quote(request.getDecryptorClassName()))
+                .append(",\"decryptMethod\":") .append(Metrics.quote(request.getMethodName()))
+                .append(",\"argument\":")      .append(Metrics.quote(request.getArgument()))
+                .append(",\"result\":")        .append(result != null ? Metrics.quote(result) : "null")
+                .append(",\"durationNanos\":") .append(durationNanos)
+                .append(",\"status\":\"")      .append(status.name().toLowerCase(Locale.ROOT)).append('"')
+                .append("}\n");
+        }
+    }
+}
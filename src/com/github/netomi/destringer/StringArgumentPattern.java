@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.Clazz;
+import proguard.classfile.constant.Constant;
+import proguard.classfile.instruction.ConstantInstruction;
+import proguard.classfile.instruction.Instruction;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The call site pattern of stringer v9+, an encrypted string loaded with
+ * <code>ldc</code> or <code>ldc_w</code> and passed to a method with the
+ * descriptor <code>(Ljava/lang/Object;)Ljava/lang/String;</code>.
+ */
+public class   StringArgumentPattern
+    implements CallSitePattern {
+
+    /**
+     * Returns the patterns that are matched by default.
+     */
+    public static List<CallSitePattern> defaultPatterns() {
+        return Collections.unmodifiableList(Arrays.asList(new StringArgumentPattern()));
+    }
+
+    @Override
+    public String getDecryptMethodType() {
+        return CallSiteCollector.DECRYPT_METHOD_TYPE;
+    }
+
+    @Override
+    public int getArgumentInstructionCount() {
+        return 1;
+    }
+
+    @Override
+    public int matchArgument(Clazz clazz, Instruction[] instructions) {
+        Instruction instruction = instructions[0];
+
+        if (instruction.opcode != Instruction.OP_LDC &&
+            instruction.opcode != Instruction.OP_LDC_W) {
+            return -1;
+        }
+
+        int constantIndex = ((ConstantInstruction) instruction).constantIndex;
+
+        return clazz.getTag(constantIndex) == Constant.STRING ? constantIndex : -1;
+    }
+}
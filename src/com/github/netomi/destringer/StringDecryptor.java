@@ -15,193 +15,379 @@
  */
 package com.github.netomi.destringer;
 
-import proguard.classfile.*;
-import proguard.classfile.attribute.Attribute;
-import proguard.classfile.attribute.CodeAttribute;
-import proguard.classfile.attribute.visitor.AllAttributeVisitor;
-import proguard.classfile.attribute.visitor.AttributeVisitor;
-import proguard.classfile.constant.*;
-import proguard.classfile.editor.CodeAttributeEditor;
-import proguard.classfile.editor.ConstantPoolEditor;
-import proguard.classfile.editor.ConstantPoolShrinker;
-import proguard.classfile.instruction.*;
-import proguard.classfile.instruction.visitor.InstructionVisitor;
-import proguard.classfile.io.ProgramClassWriter;
-import proguard.classfile.util.ClassUtil;
-import proguard.classfile.util.InstructionSequenceMatcher;
-import proguard.classfile.visitor.AllMethodVisitor;
+import proguard.classfile.ClassPool;
+import proguard.classfile.Clazz;
+import proguard.classfile.ProgramClass;
 import proguard.classfile.visitor.ClassPoolVisitor;
-import proguard.classfile.visitor.ClassVisitor;
 
-import java.io.*;
-import java.net.URL;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Decrypts encrypted strings added by stringer v9+.
+ * <p>
+ * The decryption is performed in three phases:
+ * <ol>
+ *     <li>collect all call sites of decrypt methods in the classes that
+ *         reference them, see {@link DecryptorIndex}</li>
+ *     <li>decrypt all unique requests in one batch per decryptor class</li>
+ *     <li>replace the call sites with the decrypted strings</li>
+ * </ol>
+ * Each phase can be spread over several threads, the result is the same
+ * as for a sequential run.
+ * <p>
+ * Classes are looked up by name and only the candidate classes are kept
+ * referenced, so that a {@link LazyProgramClassPool} can evict the other
+ * ones. Modified classes are added back to the class pool.
  */
 public class   StringDecryptor
-    implements ClassPoolVisitor,
-               ClassVisitor,
-               AttributeVisitor,
-               InstructionVisitor {
-
-    private static final String DECRYPT_METHOD_TYPE = "(Ljava/lang/Object;)Ljava/lang/String;";
-
-    private static final int X = InstructionSequenceMatcher.X;
-    private static final int Y = InstructionSequenceMatcher.Y;
-    private static final int Z = InstructionSequenceMatcher.Z;
-
-    private final Constant[] CONSTANTS = new Constant[]
-        {
-            new MethodrefConstant(1, 2, null, null),
-            new ClassConstant(X, null),
-            new NameAndTypeConstant(Y, 3),
-            new Utf8Constant(DECRYPT_METHOD_TYPE),
-        };
-
-    private final Instruction[] INSTRUCTIONS = new Instruction[]
-        {
-            new ConstantInstruction(Instruction.OP_LDC, Z),
-            new ConstantInstruction(Instruction.OP_INVOKESTATIC, 0),
-        };
-
-    private final Instruction[] INSTRUCTIONS2 = new Instruction[]
-        {
-            new ConstantInstruction(Instruction.OP_LDC_W, Z),
-            new ConstantInstruction(Instruction.OP_INVOKESTATIC, 0),
-        };
-
-    private final InstructionSequenceMatcher matcher1 =
-        new InstructionSequenceMatcher(CONSTANTS, INSTRUCTIONS);
-
-    private final InstructionSequenceMatcher matcher2 =
-        new InstructionSequenceMatcher(CONSTANTS, INSTRUCTIONS2);
-
-    private final File                inputJar;
-    private       AtomicInteger       decryptedStrings;
-    private       ClassPool           programClassPool;
-
-    private final CodeAttributeEditor codeAttributeEditor = new CodeAttributeEditor(true, true);
-    private       ConstantPoolEditor  constantPoolEditor;
-    private       int                 constantPoolLength;
+    implements ClassPoolVisitor {
+
+    // The number of chunks per thread the program classes are split into.
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final DecryptionEngine      engine;
+    private final int                   threads;
+    private final ForkJoinPool          sharedPool;
+    private final ClassPool             siblingClassPool;
+    private final PersistentResultCache resultCache;
+    private final ResultLog             resultLog;
+    private final Metrics               metrics;
+    private final Set<String>           modifiedClassNames = new HashSet<>();
+    private       DecryptorIndex        decryptorIndex;
 
     public StringDecryptor(File inputJar) {
-        this.inputJar = inputJar;
+        this(new LoadingEngine(inputJar), 1, null, null, new Metrics());
     }
 
-    @Override
-    public void visitClassPool(ClassPool classPool) {
-        decryptedStrings = new AtomicInteger(0);
-        programClassPool = classPool;
+    /**
+     * Creates a new StringDecryptor.
+     *
+     * @param engine      the engine to execute the decrypt methods.
+     * @param threads     the number of threads to use.
+     * @param resultCache an optional persistent cache of decrypted strings.
+     * @param resultLog   an optional log to write each decryption to.
+     * @param metrics     the metrics to record timings and counters in.
+     */
+    public StringDecryptor(DecryptionEngine      engine,
+                           int                   threads,
+                           PersistentResultCache resultCache,
+                           ResultLog             resultLog,
+                           Metrics               metrics) {
+        this(engine, threads, null, null, resultCache, resultLog, metrics);
+    }
+
+    /**
+     * Creates a new StringDecryptor that runs its tasks in a pool shared
+     * with other jars.
+     *
+     * @param engine           the engine to execute the decrypt methods.
+     * @param sharedPool       the pool to run the tasks in, it is not shut down.
+     * @param siblingClassPool an optional class pool to resolve decryptor
+     *                         classes in that are not part of the jar.
+     * @param resultCache      an optional persistent cache of decrypted strings.
+     * @param resultLog        an optional log to write each decryption to.
+     * @param metrics          the metrics to record timings and counters in.
+     */
+    public StringDecryptor(DecryptionEngine      engine,
+                           ForkJoinPool          sharedPool,
+                           ClassPool             siblingClassPool,
+                           PersistentResultCache resultCache,
+                           ResultLog             resultLog,
+                           Metrics               metrics) {
+        this(engine, sharedPool.getParallelism(), sharedPool, siblingClassPool, resultCache, resultLog, metrics);
+    }
 
-        classPool.classesAccept(this);
+    private StringDecryptor(DecryptionEngine      engine,
+                            int                   threads,
+                            ForkJoinPool          sharedPool,
+                            ClassPool             siblingClassPool,
+                            PersistentResultCache resultCache,
+                            ResultLog             resultLog,
+                            Metrics               metrics) {
+        this.engine           = engine;
+        this.threads          = threads;
+        this.sharedPool       = sharedPool;
+        this.siblingClassPool = siblingClassPool;
+        this.resultCache      = resultCache;
+        this.resultLog        = resultLog;
+        this.metrics          = metrics;
+    }
 
-        System.out.println("decrypted " + decryptedStrings.get() + " strings.");
+    /**
+     * Returns the names of the classes that have been modified
+     * by the last visited class pool.
+     */
+    public Set<String> getModifiedClassNames() {
+        return modifiedClassNames;
     }
 
-    @Override
-    public void visitAnyClass(Clazz clazz) {}
+    /**
+     * Returns the index of the decryptor classes of the last visited class
+     * pool.
+     */
+    public DecryptorIndex getDecryptorIndex() {
+        return decryptorIndex;
+    }
 
     @Override
-    public void visitProgramClass(ProgramClass programClass) {
-        constantPoolEditor = new ConstantPoolEditor(programClass);
+    public void visitClassPool(ClassPool classPool) {
+        modifiedClassNames.clear();
+
+        ForkJoinPool pool = sharedPool != null ? sharedPool :
+                            threads > 1        ? new ForkJoinPool(threads) :
+                                                 null;
+
+        try {
+            List<String>       classNames = classNames(classPool);
+            List<List<String>> chunks     = partition(classNames);
+
+            metrics.increment(Metrics.CLASSES, classNames.size());
+
+            List<CallSitePattern> patterns = StringArgumentPattern.defaultPatterns();
+            DecryptorIndex        index    = new DecryptorIndex(classPool, siblingClassPool, patterns);
+
+            decryptorIndex = index;
+
+            // Phase 1: collect all call sites, each task uses its own collector.
+            List<Callable<List<CallSite>>> collectTasks = new ArrayList<>();
+            for (List<String> chunk : chunks) {
+                collectTasks.add(() -> {
+                    long              startTime = System.nanoTime();
+                    List<CallSite>    callSites = new ArrayList<>();
+                    CallSiteCollector collector = new CallSiteCollector(callSites, patterns);
+                    for (String className : chunk) {
+                        Clazz clazz = classPool.getClass(className);
+
+                        // skip any class that does not reference a decrypt method.
+                        if (clazz instanceof ProgramClass && index.scan((ProgramClass) clazz)) {
+                            clazz.accept(collector);
+                        }
+                    }
+                    metrics.record(Metrics.Phase.COLLECT, startTime);
+                    return callSites;
+                });
+            }
 
-        constantPoolLength = programClass.constantPool.length;
+            Map<Clazz, List<CallSite>>          callSitesByClass    = new HashMap<>();
+            Map<String, Set<DecryptionRequest>> requestsByDecryptor = new LinkedHashMap<>();
+            List<List<CallSite>>                collectedCallSites  = invokeAll(pool, collectTasks);
 
-        programClass.accept(
-            new AllMethodVisitor(
-            new AllAttributeVisitor(this)));
+            for (List<CallSite> callSites : collectedCallSites) {
+                for (CallSite callSite : callSites) {
+                    callSitesByClass.computeIfAbsent(callSite.getCallerClass(), k -> new ArrayList<>())
+                                    .add(callSite);
 
-        programClass.accept(new ConstantPoolShrinker());
-    }
+                    DecryptionRequest request = callSite.getRequest();
+                    requestsByDecryptor.computeIfAbsent(request.getDecryptorClassName(), k -> new LinkedHashSet<>())
+                                       .add(request);
+                }
+            }
 
-    @Override
-    public void visitAnyAttribute(Clazz clazz, Attribute attribute) {}
+            metrics.increment(Metrics.CANDIDATE_CLASSES, index.getCandidateCount());
+            metrics.increment(Metrics.CALL_SITES, callSitesByClass.values().stream().mapToInt(List::size).sum());
+            requestsByDecryptor.values().forEach(requests -> metrics.increment(Metrics.UNIQUE_REQUESTS, requests.size()));
 
-    @Override
-    public void visitCodeAttribute(Clazz clazz, Method method, CodeAttribute codeAttribute) {
-        codeAttributeEditor.reset(codeAttribute.u4codeLength);
+            // Phase 2: decrypt the unique requests per decryptor class.
+            Map<DecryptionRequest, String> decryptedStrings = new ConcurrentHashMap<>();
+            Set<DecryptionRequest>         cachedRequests   = ConcurrentHashMap.newKeySet();
 
-        codeAttribute.instructionsAccept(clazz, method, this);
+            List<Callable<Void>> decryptTasks = new ArrayList<>();
+            for (Map.Entry<String, Set<DecryptionRequest>> entry : requestsByDecryptor.entrySet()) {
+                decryptTasks.add(() -> {
+                    decrypt(index, engine, resultCache, metrics, entry.getKey(), entry.getValue(), decryptedStrings, cachedRequests);
+                    return null;
+                });
+            }
 
-        if (codeAttributeEditor.isModified())
-        {
-            codeAttributeEditor.visitCodeAttribute(clazz, method, codeAttribute);
-        }
+            invokeAll(pool, decryptTasks);
 
-        // Update the nested attributes.
-        codeAttribute.attributesAccept(clazz, method, this);
-    }
+            if (resultLog != null) {
+                log(collectedCallSites, decryptedStrings, cachedRequests);
+            }
 
-    @Override
-    public void visitAnyInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, Instruction instruction) {
+            // Phase 3: patch the call sites, each task uses its own patcher.
+            List<Clazz> callerClasses = new ArrayList<>(callSitesByClass.keySet());
+
+            List<Callable<CallSitePatcher>> patchTasks = new ArrayList<>();
+            for (List<Clazz> chunk : partition(callerClasses)) {
+                patchTasks.add(() -> {
+                    CallSitePatcher patcher = new CallSitePatcher(callSitesByClass, decryptedStrings, metrics);
+                    for (Clazz callerClass : chunk) {
+                        callerClass.accept(patcher);
+                    }
+                    return patcher;
+                });
+            }
 
-        instruction.accept(clazz, method, codeAttribute, offset, matcher1);
-        instruction.accept(clazz, method, codeAttribute, offset, matcher2);
+            int patchedCallSites = 0;
+            for (CallSitePatcher patcher : invokeAll(pool, patchTasks)) {
+                patchedCallSites += patcher.getPatchedCallSites();
+                modifiedClassNames.addAll(patcher.getModifiedClassNames());
+            }
 
-        // did we find a match?
-        if (matcher1.isMatching() || matcher2.isMatching()) {
-            InstructionSequenceMatcher matcher = matcher1.isMatching() ? matcher1 : matcher2;
+            for (Clazz callerClass : callerClasses) {
+                if (modifiedClassNames.contains(callerClass.getName())) {
+                    classPool.addClass(callerClass);
+                }
+            }
 
-            int classIndex = matcher.matchedConstantIndex(X);
-            int nameIndex = matcher.matchedConstantIndex(Y);
-            int stringIndex = matcher.matchedConstantIndex(Z);
+            metrics.increment(Metrics.PATCHED_CALL_SITES, patchedCallSites);
+            metrics.increment(Metrics.MODIFIED_CLASSES,   modifiedClassNames.size());
+
+            System.err.println("decrypted " + patchedCallSites + " strings " +
+                               "(" + decryptedStrings.size() + " unique" +
+                               (resultCache != null ?
+                                   ", " + metrics.getCounter(Metrics.CACHE_HITS)   + " cache hits, " +
+                                          metrics.getCounter(Metrics.CACHE_MISSES) + " cache misses" :
+                                   "") +
+                               ").");
+        } finally {
+            if (pool != null && pool != sharedPool) {
+                pool.shutdown();
+            }
+        }
+    }
 
-            String className = clazz.getString(classIndex);
-            String externalClassName = ClassUtil.externalClassName(className);
-            String methodName = clazz.getString(nameIndex);
-            String argument = clazz.getStringString(stringIndex);
+    private static void decrypt(DecryptorIndex                 index,
+                                DecryptionEngine               engine,
+                                PersistentResultCache          resultCache,
+                                Metrics                        metrics,
+                                String                         decryptorClassName,
+                                Set<DecryptionRequest>         requests,
+                                Map<DecryptionRequest, String> decryptedStrings,
+                                Set<DecryptionRequest>         cachedRequests) {
+
+        Clazz decryptorClass = index.getDecryptorClass(decryptorClassName);
+        if (!(decryptorClass instanceof ProgramClass)) {
+            System.err.println("decryptor class " + decryptorClassName + " not found.");
+            return;
+        }
 
-            System.out.print(String.format("calling method %s.%s(%s)", className, methodName, argument));
+        try {
+            Collection<DecryptionRequest>  pendingRequests = requests;
+            Map<DecryptionRequest, byte[]> cacheKeys       = new HashMap<>();
+
+            // Take any previously decrypted strings from the persistent cache.
+            if (resultCache != null) {
+                byte[] classDigest =
+                    PersistentResultCache.classDigest(CodeLifter.toByteArray((ProgramClass) decryptorClass));
+
+                pendingRequests = new ArrayList<>();
+                for (DecryptionRequest request : requests) {
+                    byte[] key    = PersistentResultCache.key(classDigest, request);
+                    String result = resultCache.get(key);
+
+                    if (result != null) {
+                        decryptedStrings.put(request, result);
+                        cachedRequests.add(request);
+                        metrics.increment(Metrics.CACHE_HITS, 1);
+                    } else {
+                        pendingRequests.add(request);
+                        cacheKeys.put(request, key);
+                        metrics.increment(Metrics.CACHE_MISSES, 1);
+                    }
+                }
+            }
 
-            ProgramClass originalClass = (ProgramClass) programClassPool.getClass(className);
+            if (pendingRequests.isEmpty()) {
+                return;
+            }
 
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                 DataOutputStream os = new DataOutputStream(baos)) {
+            engine.decrypt((ProgramClass) decryptorClass, pendingRequests, decryptedStrings, metrics);
 
-                // clone the original class.
-                ProgramClass modifiedClass = CodeLifter.copyClass(originalClass);
+            for (DecryptionRequest request : pendingRequests) {
+                String result = decryptedStrings.get(request);
+                if (result != null) {
+                    metrics.increment(Metrics.DECRYPTED_STRINGS, 1);
 
-                // and modify its contents.
-                modifiedClass.accept(
-                    new ProtectionRemover(ClassUtil.externalClassName(clazz.getName()),
-                                          method.getName(clazz),
-                                          constantPoolLength));
+                    if (resultCache != null) {
+                        resultCache.put(cacheKeys.get(request), result);
+                    }
+                } else {
+                    metrics.increment(Metrics.FAILED_REQUESTS, 1);
+                }
+            }
+        } catch (Exception e) {
+            metrics.recordFailure(e);
+            e.printStackTrace();
+        }
+    }
 
-                modifiedClass.accept(new ProgramClassWriter(os));
-                os.flush();
+    /**
+     * Writes the result of each call site to the result log, in the order
+     * in which the call sites have been collected.
+     */
+    private void log(List<List<CallSite>>           collectedCallSites,
+                     Map<DecryptionRequest, String> decryptedStrings,
+                     Set<DecryptionRequest>         cachedRequests) {
+        Map<DecryptionRequest, Long> durations = new HashMap<>();
 
-                byte[] bytes = baos.toByteArray();
+        for (List<CallSite> callSites : collectedCallSites) {
+            for (CallSite callSite : callSites) {
+                DecryptionRequest request = callSite.getRequest();
+                String            result  = decryptedStrings.get(request);
 
-                try {
-                    URL input = inputJar.toURI().toURL();
+                ResultLog.Status status =
+                    result == null                   ? ResultLog.Status.FAILED :
+                    cachedRequests.contains(request) ? ResultLog.Status.CACHED :
+                                                       ResultLog.Status.OK;
 
-                    Class<?> decryptorClass = CodeLifter.loadClass(externalClassName, bytes, input);
+                long durationNanos = durations.computeIfAbsent(request, metrics::takeRequestNanos);
 
-                    java.lang.reflect.Method m = decryptorClass.getDeclaredMethod(methodName, new Class[]{Object.class});
-                    m.setAccessible(true);
-                    Object result = m.invoke(null, argument);
+                resultLog.log(callSite, result, durationNanos, status);
+            }
+        }
+    }
 
-                    System.out.println(" = " + result);
+    private static List<String> classNames(ClassPool classPool) {
+        List<String> classNames = new ArrayList<>(classPool.size());
 
-                    int instructionOffset = matcher.matchedInstructionOffset(matcher.instructionCount() - 2);
+        Iterator<String> iterator = classPool.classNames();
+        while (iterator.hasNext()) {
+            classNames.add(iterator.next());
+        }
+        return classNames;
+    }
 
-                    int constantIndex = constantPoolEditor.addStringConstant(result.toString(), null, null);
+    private <T> List<List<T>> partition(List<T> elements) {
+        int chunkCount = threads > 1 ? threads * CHUNKS_PER_THREAD : 1;
+        int chunkSize  = Math.max(1, (elements.size() + chunkCount - 1) / chunkCount);
 
-                    codeAttributeEditor.replaceInstruction(instructionOffset, new ConstantInstruction(Instruction.OP_LDC, constantIndex));
-                    codeAttributeEditor.deleteInstruction(matcher.matchedInstructionOffset(matcher.instructionCount() - 1));
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < elements.size(); i += chunkSize) {
+            chunks.add(elements.subList(i, Math.min(i + chunkSize, elements.size())));
+        }
+        return chunks;
+    }
 
-                    decryptedStrings.incrementAndGet();
-                } catch (Exception e) {
-                    e.printStackTrace();
+    /**
+     * Executes the given tasks, in the given pool if available, and returns
+     * their results in the order of the tasks.
+     */
+    private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>(tasks.size());
+
+        try {
+            if (pool == null) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+            } else {
+                for (Future<T> future : pool.invokeAll(tasks)) {
+                    results.add(future.get());
                 }
-            } catch (IOException ex) {
-                ex.printStackTrace();
             }
-
-            matcher.reset();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
-    }
 
+        return results;
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs decryption tasks with a deadline for each step of progress and
+ * abandons tasks that get stuck, e.g. in an endless loop of a decryptor.
+ * <p>
+ * Abandoned tasks are interrupted, but as the code of a decryptor can not
+ * be stopped safely, their threads are left running as daemon threads.
+ * Decryptors whose tasks have been abandoned too often are blacklisted.
+ */
+public class Watchdog
+    implements Closeable {
+
+    public static final long DEFAULT_TIMEOUT_SECONDS = 10;
+    public static final int  DEFAULT_MAX_TIMEOUTS    = 3;
+
+    private final long                       timeoutNanos;
+    private final int                        maxTimeouts;
+    private final Map<String, AtomicInteger> timeoutCounts = new ConcurrentHashMap<>();
+    private final ExecutorService            executor;
+
+    /**
+     * A decryption task that reports its progress.
+     */
+    public interface Task {
+        void run(Progress progress) throws Exception;
+    }
+
+    /**
+     * The progress of a running task, each call to {@link #advance()}
+     * starts a new deadline.
+     */
+    public static class Progress {
+        private volatile long lastProgress = System.nanoTime();
+
+        public void advance() {
+            lastProgress = System.nanoTime();
+        }
+    }
+
+    public Watchdog(long timeoutMillis) {
+        this(timeoutMillis, DEFAULT_MAX_TIMEOUTS);
+    }
+
+    /**
+     * Creates a new Watchdog.
+     *
+     * @param timeoutMillis the maximum time between two steps of progress of a task.
+     * @param maxTimeouts   the number of abandoned tasks after which a decryptor is blacklisted.
+     */
+    public Watchdog(long timeoutMillis, int maxTimeouts) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxTimeouts  = maxTimeouts;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "destringer-watchdog-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns whether tasks of the given decryptor class have been abandoned
+     * too often.
+     */
+    public boolean isBlacklisted(String decryptorClassName) {
+        AtomicInteger timeoutCount = timeoutCounts.get(decryptorClassName);
+        return timeoutCount != null && timeoutCount.get() >= maxTimeouts;
+    }
+
+    /**
+     * Runs the given task of the given decryptor class on a separate thread
+     * and waits for it as long as it makes progress within the deadline.
+     *
+     * @return true if the task completed, false if it has been abandoned.
+     * @throws Exception the exception thrown by the task.
+     */
+    public boolean run(String decryptorClassName, Task task) throws Exception {
+        Progress  progress = new Progress();
+        Future<?> future   = executor.submit(() -> {
+            task.run(progress);
+            return null;
+        });
+
+        while (true) {
+            long remainingNanos = progress.lastProgress + timeoutNanos - System.nanoTime();
+            if (remainingNanos <= 0) {
+                future.cancel(true);
+                timeoutCounts.computeIfAbsent(decryptorClassName, k -> new AtomicInteger()).incrementAndGet();
+                return false;
+            }
+
+            try {
+                future.get(remainingNanos, TimeUnit.NANOSECONDS);
+                return true;
+            } catch (TimeoutException e) {
+                // check whether the task made progress in the meantime.
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2020 Thomas Neidhart
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.netomi.destringer;
+
+import proguard.classfile.ProgramClass;
+import proguard.classfile.util.ClassUtil;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A decryption engine that executes the decrypt methods in a pool of
+ * separate worker JVMs, see {@link DecryptorWorker}.
+ * <p>
+ * Each worker receives the bytes of a lifted decryptor class once, followed
+ * by batches of requests that are sent without waiting for the previous
+ * batches to complete. A worker that crashes, exits or exceeds the deadline
+ * of a batch, the request timeout times the number of its requests, is
+ * killed and restarted, and its pending batches are retried once.
+ */
+public class WorkerEngine
+    implements DecryptionEngine {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final File                inputJar;
+    private final int                 batchSize;
+    private final long                requestTimeoutSeconds;
+    private final WorkerProcess[]     workers;
+    private final AtomicInteger       nextWorker    = new AtomicInteger();
+    private final Map<String, byte[]> liftedClasses = new ConcurrentHashMap<>();
+
+    public WorkerEngine(File inputJar, int workerCount) {
+        this(inputJar, workerCount, DEFAULT_BATCH_SIZE, Watchdog.DEFAULT_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Creates a new WorkerEngine.
+     * <p>
+     * As the decrypt methods are invoked in the workers, only the time
+     * spent waiting for each batch is recorded as invocation time.
+     *
+     * @param inputJar              the jar containing the decryptor classes.
+     * @param workerCount           the number of worker JVMs.
+     * @param batchSize             the maximum number of requests per batch.
+     * @param requestTimeoutSeconds the deadline of a single request, 0 to
+     *                              wait for batches without a deadline.
+     */
+    public WorkerEngine(File inputJar, int workerCount, int batchSize, long requestTimeoutSeconds) {
+        this.inputJar              = inputJar;
+        this.batchSize             = batchSize;
+        this.requestTimeoutSeconds = requestTimeoutSeconds;
+
+        workers = new WorkerProcess[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new WorkerProcess(i);
+        }
+    }
+
+    @Override
+    public void decrypt(ProgramClass                   decryptorClass,
+                        Collection<DecryptionRequest>  requests,
+                        Map<DecryptionRequest, String> results,
+                        Metrics                        metrics) throws Exception {
+
+        String externalClassName = ClassUtil.externalClassName(decryptorClass.getName());
+
+        byte[] liftedClass = liftedClasses.get(externalClassName);
+        if (liftedClass == null) {
+            liftedClass = CodeLifter.toByteArray(CodeLifter.liftClass(decryptorClass, metrics));
+            liftedClasses.put(externalClassName, liftedClass);
+        }
+
+        // Send all batches before waiting for any result.
+        List<List<DecryptionRequest>> batches = new ArrayList<>();
+        List<Future<String[]>>        futures = new ArrayList<>();
+
+        List<DecryptionRequest> requestList = new ArrayList<>(requests);
+        for (int i = 0; i < requestList.size(); i += batchSize) {
+            List<DecryptionRequest> batch = requestList.subList(i, Math.min(i + batchSize, requestList.size()));
+
+            batches.add(batch);
+            futures.add(nextWorker().submit(externalClassName, liftedClass, batch));
+        }
+
+        for (int i = 0; i < batches.size(); i++) {
+            List<DecryptionRequest> batch     = batches.get(i);
+            long                    startTime = System.nanoTime();
+            String[]                decrypted = await(futures.get(i), batch.size(), metrics);
+
+            if (decrypted == null) {
+                System.err.println("retrying batch of " + batch.size() + " requests to " + externalClassName);
+                decrypted = await(nextWorker().submit(externalClassName, liftedClass, batch), batch.size(), metrics);
+            }
+
+            metrics.record(Metrics.Phase.INVOKE, startTime);
+
+            if (decrypted != null) {
+                for (int j = 0; j < decrypted.length; j++) {
+                    if (decrypted[j] != null) {
+                        results.put(batch.get(j), decrypted[j]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the given batch of the given number of requests and returns
+     * its results, or null if the batch failed, in which case the worker is
+     * restarted.
+     */
+    private String[] await(Future<String[]> future, int requestCount, Metrics metrics) throws InterruptedException {
+        try {
+            return requestTimeoutSeconds > 0 ?
+                future.get(requestTimeoutSeconds * requestCount, TimeUnit.SECONDS) :
+                future.get();
+        } catch (ExecutionException e) {
+            metrics.recordFailure(e.getCause());
+            System.err.println("worker failed: " + e.getCause().getMessage());
+            return null;
+        } catch (TimeoutException e) {
+            metrics.recordFailure(e);
+
+            WorkerProcess worker = ((BatchFuture) future).worker;
+
+            System.err.println("worker " + worker.index + " timed out, restarting it");
+            worker.kill();
+            return null;
+        }
+    }
+
+    private WorkerProcess nextWorker() {
+        return workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (WorkerProcess worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    /**
+     * The future of a batch sent to a particular worker.
+     */
+    private static class BatchFuture extends CompletableFuture<String[]> {
+        final WorkerProcess worker;
+
+        BatchFuture(WorkerProcess worker) {
+            this.worker = worker;
+        }
+    }
+
+    /**
+     * A worker JVM together with the connection to it.
+     */
+    private class WorkerProcess {
+        final int index;
+
+        private Process                          process;
+        private DataOutputStream                 output;
+        private Set<String>                      definedClasses;
+        private Map<Integer, BatchFuture>        pendingBatches;
+        private int                              nextBatchId;
+
+        WorkerProcess(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Sends the given batch to this worker, starting it and defining
+         * the lifted class first if necessary.
+         */
+        synchronized Future<String[]> submit(String                  externalClassName,
+                                             byte[]                  liftedClass,
+                                             List<DecryptionRequest> batch) {
+            BatchFuture future = new BatchFuture(this);
+
+            try {
+                if (process == null || !process.isAlive()) {
+                    start();
+                }
+
+                if (definedClasses.add(externalClassName)) {
+                    output.writeByte(DecryptorWorker.DEFINE);
+                    DecryptorWorker.writeString(output, externalClassName);
+                    output.writeInt(liftedClass.length);
+                    output.write(liftedClass);
+                }
+
+                int batchId = nextBatchId++;
+                pendingBatches.put(batchId, future);
+
+                output.writeByte(DecryptorWorker.BATCH);
+                output.writeInt(batchId);
+                DecryptorWorker.writeString(output, externalClassName);
+                output.writeInt(batch.size());
+
+                for (DecryptionRequest request : batch) {
+                    DecryptorWorker.writeString(output, request.getMethodName());
+                    DecryptorWorker.writeString(output, request.getArgument());
+                    DecryptorWorker.writeString(output, request.getCallerClassName());
+                    DecryptorWorker.writeString(output, request.getCallerMethodName());
+                    output.writeInt(request.getConstantPoolSize());
+                }
+
+                output.flush();
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+                kill();
+            }
+
+            return future;
+        }
+
+        private void start() throws IOException {
+            String javaExecutable =
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+            ProcessBuilder processBuilder =
+                new ProcessBuilder(javaExecutable,
+                                   "-cp", System.getProperty("java.class.path"),
+                                   DecryptorWorker.class.getName(),
+                                   inputJar.getAbsolutePath());
+
+            processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+            process        = processBuilder.start();
+            output         = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            definedClasses = new HashSet<>();
+            pendingBatches = new ConcurrentHashMap<>();
+
+            Process                   startedProcess = process;
+            Map<Integer, BatchFuture> batches        = pendingBatches;
+
+            Thread reader = new Thread(() -> readResponses(startedProcess, batches), "destringer-worker-" + index);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Reads the responses of the given process until it terminates.
+         */
+        private void readResponses(Process process, Map<Integer, BatchFuture> batches) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(process.getInputStream()))) {
+                while (true) {
+                    int      batchId = input.readInt();
+                    String[] results = new String[input.readInt()];
+
+                    for (int i = 0; i < results.length; i++) {
+                        if (input.readByte() == DecryptorWorker.STATUS_OK) {
+                            results[i] = DecryptorWorker.readString(input);
+                        }
+                    }
+
+                    BatchFuture future = batches.remove(batchId);
+                    if (future != null) {
+                        future.complete(results);
+                    }
+                }
+            } catch (IOException e) {
+                // The worker has terminated, fail all its pending batches.
+                IOException failure = new IOException("worker " + index + " terminated");
+                for (BatchFuture future : batches.values()) {
+                    future.completeExceptionally(failure);
+                }
+                batches.clear();
+            }
+        }
+
+        synchronized void kill() {
+            if (process != null) {
+                process.destroyForcibly();
+                process = null;
+            }
+        }
+
+        synchronized void shutdown() {
+            if (process != null) {
+                try {
+                    // Closing the input lets the worker exit normally.
+                    output.close();
+                    if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                        process.destroyForcibly();
+                    }
+                } catch (IOException e) {
+                    process.destroyForcibly();
+                } catch (InterruptedException e) {
+                    process.destroyForcibly();
+                    Thread.currentThread().interrupt();
+                }
+                process = null;
+            }
+        }
+    }
+}